@@ -8,6 +8,8 @@ import com.amazonaws.services.sqs.model.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
 
 
 /**
@@ -33,13 +35,222 @@ public class AWSParameters extends CredentialParameters {
 
     // number of threads to use
     // 0 means use the max available
+    // "auto" means start with the max available and adjust as we go
     public static final String NUM_THREADS_ID = "numThreads";
     public static final int DEFAULT_NUM_THREADS = 0;
+    public static final String NUM_THREADS_AUTO = "auto";
 
     // whether or not to shutdown on termination
     public static final String SHOULD_SHUTDOWN_ID = "shouldShutdown";
     public static final boolean DEFAULT_SHOULD_SHUTDOWN = true;
 
+    // how long a receive waits for messages to arrive, in seconds
+    // 0 means return immediately
+    public static final String RECEIVE_WAIT_TIME_ID = "receiveWaitTime";
+    public static final int DEFAULT_RECEIVE_WAIT_TIME = 20;
+    public static final int MAX_RECEIVE_WAIT_TIME = 20; // imposed by SQS
+
+    // how many empty receives in a row a thread must see before
+    // it checks if the queue is drained
+    public static final String EMPTY_RECEIVES_ID = "emptyReceivesBeforeExit";
+    public static final int DEFAULT_EMPTY_RECEIVES = 3;
+
+    // how a worker should process files
+    // "threads" means each thread downloads, analyzes, and uploads its own files
+    // "pipeline" means downloads, analyses, and uploads each get their own threads
+    public static final String WORKER_MODE_ID = "workerMode";
+    public static final String WORKER_MODE_THREADS = "threads";
+    public static final String WORKER_MODE_PIPELINE = "pipeline";
+    public static final String DEFAULT_WORKER_MODE = WORKER_MODE_THREADS;
+    public static final String[] WORKER_MODES =
+	new String[]{ WORKER_MODE_THREADS,
+		      WORKER_MODE_PIPELINE };
+
+    // number of threads downloading and uploading in pipeline mode
+    public static final String DOWNLOAD_THREADS_ID = "downloadThreads";
+    public static final int DEFAULT_DOWNLOAD_THREADS = 2;
+    public static final String UPLOAD_THREADS_ID = "uploadThreads";
+    public static final int DEFAULT_UPLOAD_THREADS = 2;
+
+    // how many files can wait between stages in pipeline mode
+    // 0 means use the number of threads
+    public static final String PIPELINE_DEPTH_ID = "pipelineDepth";
+    public static final int DEFAULT_PIPELINE_DEPTH = 0;
+
+    // number of threads shared by all parallel transfers
+    public static final String TRANSFER_THREADS_ID = "transferThreads";
+    public static final int DEFAULT_TRANSFER_THREADS = 16;
+
+    // inputs at least this big (in bytes) are downloaded as several
+    // byte ranges at once
+    // 0 means always download with a single request
+    public static final String RANGED_GET_THRESHOLD_ID = "rangedGetThreshold";
+    public static final long DEFAULT_RANGED_GET_THRESHOLD = 1024L * 1024L * 64L;
+
+    // how many ranges to split such inputs into
+    public static final String RANGED_GET_PARTS_ID = "rangedGetParts";
+    public static final int DEFAULT_RANGED_GET_PARTS = 8;
+
+    // outputs at least this big (in bytes) are uploaded as several
+    // parts at once
+    // 0 means always upload with a single request
+    public static final String MULTIPART_THRESHOLD_ID = "multipartThreshold";
+    public static final long DEFAULT_MULTIPART_THRESHOLD = 1024L * 1024L * 64L;
+
+    // how big each part is, in bytes
+    public static final String MULTIPART_PART_SIZE_ID = "multipartPartSize";
+    public static final long DEFAULT_MULTIPART_PART_SIZE = 1024L * 1024L * 16L;
+
+    // the most parts of a single upload that can be in flight at once
+    public static final String MULTIPART_CONCURRENCY_ID = "multipartConcurrency";
+    public static final int DEFAULT_MULTIPART_CONCURRENCY = 4;
+
+    // how the analysis program gets its input
+    // "file" means the input is downloaded and its name is passed as an argument
+    // "stdin" means the input is streamed to stdin, and its name is passed as an argument
+    public static final String INPUT_MODE_ID = "inputMode";
+    public static final String INPUT_MODE_FILE = "file";
+    public static final String INPUT_MODE_STDIN = "stdin";
+    public static final String DEFAULT_INPUT_MODE = INPUT_MODE_FILE;
+    public static final String[] INPUT_MODES =
+	new String[]{ INPUT_MODE_FILE,
+		      INPUT_MODE_STDIN };
+
+    // where the output of the analysis program comes from
+    // "file" means the program prints the name of its output file
+    // "stdout-object" means whatever the program prints is the output,
+    // which is uploaded as it is printed, using the input's name
+    public static final String OUTPUT_MODE_ID = "outputMode";
+    public static final String OUTPUT_MODE_FILE = "file";
+    public static final String OUTPUT_MODE_STDOUT_OBJECT = "stdout-object";
+    public static final String DEFAULT_OUTPUT_MODE = OUTPUT_MODE_FILE;
+    public static final String[] OUTPUT_MODES =
+	new String[]{ OUTPUT_MODE_FILE,
+		      OUTPUT_MODE_STDOUT_OBJECT };
+
+    // the most bytes of input files to keep in the local input cache
+    // 0 means don't cache input files
+    public static final String INPUT_CACHE_SIZE_ID = "inputCacheSize";
+    public static final long DEFAULT_INPUT_CACHE_SIZE = 0;
+
+    // where to keep the input cache
+    public static final String INPUT_CACHE_DIR_ID = "inputCacheDir";
+    public static final String DEFAULT_INPUT_CACHE_DIR = "input-cache";
+
+    // whether or not to reuse the outputs of earlier runs on the same
+    // inputs with the same environment
+    public static final String MEMOIZE_RESULTS_ID = "memoizeResults";
+    public static final boolean DEFAULT_MEMOIZE_RESULTS = false;
+
+    // the most seconds a single run of the analysis program can take
+    // before it is killed, along with everything it started
+    // 0 means no limit
+    public static final String ANALYSIS_TIMEOUT_ID = "analysisTimeout";
+    public static final int DEFAULT_ANALYSIS_TIMEOUT = 0;
+
+    // the most seconds a file can be worked on before it is given up on
+    // and moved to the dead-letter queue
+    // 0 means no limit
+    public static final String MAX_TASK_RUNTIME_ID = "maxTaskRuntime";
+    public static final int DEFAULT_MAX_TASK_RUNTIME = 0;
+
+    // how many more seconds than the maximum task runtime a file can be
+    // held for, to allow for downloading and uploading it, before its
+    // message is let go back on the queue
+    public static final String TRANSFER_ALLOWANCE_ID = "transferAllowance";
+    public static final int DEFAULT_TRANSFER_ALLOWANCE = 60 * 60;
+
+    // the most times a file can be received before it is moved to the
+    // dead-letter queue instead of being tried again
+    // 0 means no limit
+    public static final String MAX_RECEIVE_COUNT_ID = "maxReceiveCount";
+    public static final int DEFAULT_MAX_RECEIVE_COUNT = 0;
+
+    // whether or not a run of the analysis program that exits with a
+    // non-zero status fails, instead of its output being used anyway
+    public static final String FAIL_ON_EXIT_CODE_ID = "failOnExitCode";
+    public static final boolean DEFAULT_FAIL_ON_EXIT_CODE = false;
+
+    // how the analysis program is run
+    // "single" means once per input file
+    // "batch" means once per batch of input files, all passed as arguments,
+    // printing the name of each output file on its own line
+    // "coprocess" means once per thread, reading the name of each input
+    // file on its own line and printing the name of each output file on
+    // its own line
+    public static final String INVOCATION_MODE_ID = "invocationMode";
+    public static final String INVOCATION_MODE_SINGLE = "single";
+    public static final String INVOCATION_MODE_BATCH = "batch";
+    public static final String INVOCATION_MODE_COPROCESS = "coprocess";
+    public static final String DEFAULT_INVOCATION_MODE = INVOCATION_MODE_SINGLE;
+    public static final String[] INVOCATION_MODES =
+	new String[]{ INVOCATION_MODE_SINGLE,
+		      INVOCATION_MODE_BATCH,
+		      INVOCATION_MODE_COPROCESS };
+
+    // the most input files passed to a single run of the analysis program
+    // in batch mode
+    public static final String BATCH_SIZE_ID = "batchSize";
+    public static final int DEFAULT_BATCH_SIZE = 10;
+
+    // how long a coprocess can take on a single file before it is
+    // restarted, in seconds
+    // 0 means no limit
+    public static final String COPROCESS_TIMEOUT_ID = "coprocessTimeout";
+    public static final int DEFAULT_COPROCESS_TIMEOUT = 60 * 10; // 10 minutes
+
+    // how much memory a coprocess can use before it is restarted, in bytes
+    // 0 means no limit
+    public static final String COPROCESS_MAX_MEMORY_ID = "coprocessMaxMemory";
+    public static final long DEFAULT_COPROCESS_MAX_MEMORY = 0;
+
+    // the most files BucketToQueue puts in a single message
+    // 1 means one message per file
+    public static final String BUNDLE_MAX_FILES_ID = "bundleMaxFiles";
+    public static final int DEFAULT_BUNDLE_MAX_FILES = 1;
+
+    // the most bytes of files BucketToQueue puts in a single message,
+    // although a file bigger than this still gets a message of its own
+    // 0 means no limit
+    public static final String BUNDLE_MAX_BYTES_ID = "bundleMaxBytes";
+    public static final long DEFAULT_BUNDLE_MAX_BYTES = 1024L * 1024L * 16L;
+
+    // how many threads BucketToQueue sends messages with
+    public static final String ENQUEUE_THREADS_ID = "enqueueThreads";
+    public static final int DEFAULT_ENQUEUE_THREADS = 8;
+
+    // how many parts of the bucket BucketToQueue lists at once
+    public static final String LIST_THREADS_ID = "listThreads";
+    public static final int DEFAULT_LIST_THREADS = ParallelListing.DEFAULT_THREADS;
+
+    // where BucketToQueue saves how far it got, either a local file or
+    // s3://bucket/key
+    // empty means the queue name followed by CHECKPOINT_SUFFIX, locally
+    public static final String CHECKPOINT_LOCATION_ID = "checkpointLocation";
+    public static final String DEFAULT_CHECKPOINT_LOCATION = "";
+    public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    // how to get the key of a file's output from the file's key, for
+    // BucketToQueue --incremental: the first match of the pattern is
+    // replaced with the replacement, which can refer to groups ($1)
+    // the default is that they are the same
+    public static final String OUTPUT_KEY_PATTERN_ID = "outputKeyPattern";
+    public static final String DEFAULT_OUTPUT_KEY_PATTERN = "^.*$";
+    public static final String OUTPUT_KEY_REPLACEMENT_ID = "outputKeyReplacement";
+    public static final String DEFAULT_OUTPUT_KEY_REPLACEMENT = "$0";
+
+    // how many queues files are spread across, to get past what a single
+    // queue can take; the first is at queueURL, and the rest are at
+    // queueURL followed by SHARD_SUFFIX and their number
+    public static final String QUEUE_SHARDS_ID = "queueShards";
+    public static final int DEFAULT_QUEUE_SHARDS = 1;
+    public static final String SHARD_SUFFIX = "-shard";
+
+    // the most messages to hold locally before they are handed out
+    // 0 means use the number of threads
+    public static final String PREFETCH_SIZE_ID = "prefetchSize";
+    public static final int DEFAULT_PREFETCH_SIZE = 0;
+
     private static final Set< String > NEEDED_PARAMS = 
 	new HashSet< String >() { 
 	{
@@ -62,19 +273,105 @@ public class AWSParameters extends CredentialParameters {
 		 Integer.toString( DEFAULT_NUM_THREADS ) );
 	    put( SHOULD_SHUTDOWN_ID,
 		 Boolean.toString( DEFAULT_SHOULD_SHUTDOWN ) );
+	    put( PREFETCH_SIZE_ID,
+		 Integer.toString( DEFAULT_PREFETCH_SIZE ) );
+	    put( RECEIVE_WAIT_TIME_ID,
+		 Integer.toString( DEFAULT_RECEIVE_WAIT_TIME ) );
+	    put( EMPTY_RECEIVES_ID,
+		 Integer.toString( DEFAULT_EMPTY_RECEIVES ) );
+	    put( WORKER_MODE_ID,
+		 DEFAULT_WORKER_MODE );
+	    put( DOWNLOAD_THREADS_ID,
+		 Integer.toString( DEFAULT_DOWNLOAD_THREADS ) );
+	    put( UPLOAD_THREADS_ID,
+		 Integer.toString( DEFAULT_UPLOAD_THREADS ) );
+	    put( PIPELINE_DEPTH_ID,
+		 Integer.toString( DEFAULT_PIPELINE_DEPTH ) );
+	    put( TRANSFER_THREADS_ID,
+		 Integer.toString( DEFAULT_TRANSFER_THREADS ) );
+	    put( RANGED_GET_THRESHOLD_ID,
+		 Long.toString( DEFAULT_RANGED_GET_THRESHOLD ) );
+	    put( RANGED_GET_PARTS_ID,
+		 Integer.toString( DEFAULT_RANGED_GET_PARTS ) );
+	    put( MULTIPART_THRESHOLD_ID,
+		 Long.toString( DEFAULT_MULTIPART_THRESHOLD ) );
+	    put( MULTIPART_PART_SIZE_ID,
+		 Long.toString( DEFAULT_MULTIPART_PART_SIZE ) );
+	    put( MULTIPART_CONCURRENCY_ID,
+		 Integer.toString( DEFAULT_MULTIPART_CONCURRENCY ) );
+	    put( INPUT_MODE_ID,
+		 DEFAULT_INPUT_MODE );
+	    put( OUTPUT_MODE_ID,
+		 DEFAULT_OUTPUT_MODE );
+	    put( INPUT_CACHE_SIZE_ID,
+		 Long.toString( DEFAULT_INPUT_CACHE_SIZE ) );
+	    put( INPUT_CACHE_DIR_ID,
+		 DEFAULT_INPUT_CACHE_DIR );
+	    put( MEMOIZE_RESULTS_ID,
+		 Boolean.toString( DEFAULT_MEMOIZE_RESULTS ) );
+	    put( ANALYSIS_TIMEOUT_ID,
+		 Integer.toString( DEFAULT_ANALYSIS_TIMEOUT ) );
+	    put( MAX_TASK_RUNTIME_ID,
+		 Integer.toString( DEFAULT_MAX_TASK_RUNTIME ) );
+	    put( TRANSFER_ALLOWANCE_ID,
+		 Integer.toString( DEFAULT_TRANSFER_ALLOWANCE ) );
+	    put( MAX_RECEIVE_COUNT_ID,
+		 Integer.toString( DEFAULT_MAX_RECEIVE_COUNT ) );
+	    put( FAIL_ON_EXIT_CODE_ID,
+		 Boolean.toString( DEFAULT_FAIL_ON_EXIT_CODE ) );
+	    put( INVOCATION_MODE_ID,
+		 DEFAULT_INVOCATION_MODE );
+	    put( BATCH_SIZE_ID,
+		 Integer.toString( DEFAULT_BATCH_SIZE ) );
+	    put( COPROCESS_TIMEOUT_ID,
+		 Integer.toString( DEFAULT_COPROCESS_TIMEOUT ) );
+	    put( COPROCESS_MAX_MEMORY_ID,
+		 Long.toString( DEFAULT_COPROCESS_MAX_MEMORY ) );
+	    put( BUNDLE_MAX_FILES_ID,
+		 Integer.toString( DEFAULT_BUNDLE_MAX_FILES ) );
+	    put( BUNDLE_MAX_BYTES_ID,
+		 Long.toString( DEFAULT_BUNDLE_MAX_BYTES ) );
+	    put( ENQUEUE_THREADS_ID,
+		 Integer.toString( DEFAULT_ENQUEUE_THREADS ) );
+	    put( LIST_THREADS_ID,
+		 Integer.toString( DEFAULT_LIST_THREADS ) );
+	    put( CHECKPOINT_LOCATION_ID,
+		 DEFAULT_CHECKPOINT_LOCATION );
+	    put( OUTPUT_KEY_PATTERN_ID,
+		 DEFAULT_OUTPUT_KEY_PATTERN );
+	    put( OUTPUT_KEY_REPLACEMENT_ID,
+		 DEFAULT_OUTPUT_KEY_REPLACEMENT );
+	    put( QUEUE_SHARDS_ID,
+		 Integer.toString( DEFAULT_QUEUE_SHARDS ) );
 	}
     };
     // end constants for parameters
 
     // begin constants for processing
-    public static final int MAX_NUMBER_MESSAGES = 1;
+    // the most SQS will hand back for a single receive
+    public static final int MAX_NUMBER_MESSAGES = 10;
     public static final int NUM_RETRIES = 7;
     public static final int START_SECONDS_TO_RETRY = 1;
     public static final String NO_SUCH_KEY = "NoSuchKey";
+    public static final int NOT_FOUND_STATUS = 404;
+    public static final int PRECONDITION_FAILED_STATUS = 412;
 
     // for interfacing with SQS
+    public static final String APPROXIMATE_RECEIVE_COUNT = 
+	"ApproximateReceiveCount";
+    public static final String QUEUE_ARN = "QueueArn";
+    public static final String REDRIVE_POLICY = "RedrivePolicy";
+    // the dead-letter queue of a queue has the same URL plus this
+    public static final String DEAD_LETTER_QUEUE_SUFFIX = "-dlq";
+    // attributes of messages in the dead-letter queue
+    public static final String FAILURE_REASON_ATTRIBUTE = "FailureReason";
+    public static final String EXIT_CODE_ATTRIBUTE = "ExitCode";
+    public static final String STDERR_TAIL_ATTRIBUTE = "StderrTail";
+    public static final int MAX_STDERR_TAIL = 1024 * 4;
     public static final String APPROXIMATE_NUM_MESSAGES = 
 	"ApproximateNumberOfMessages";
+    public static final String APPROXIMATE_NUM_MESSAGES_NOT_VISIBLE =
+	"ApproximateNumberOfMessagesNotVisible";
     // end constants for processing
     // end constants
 
@@ -82,6 +379,22 @@ public class AWSParameters extends CredentialParameters {
     private final int numThreads;
     private final int visibilityTimeout;
     private final boolean shouldShutdown;
+    private final int prefetchSize;
+    private final int receiveWaitTime;
+    private final int emptyReceivesBeforeExit;
+    private final int downloadThreads;
+    private final int uploadThreads;
+    private final int pipelineDepth;
+    private final long rangedGetThreshold;
+    private final int rangedGetParts;
+    private final long multipartThreshold;
+    private final long multipartPartSize;
+    private final int multipartConcurrency;
+    private ExecutorService transferExecutor;
+    private InputCache inputCache;
+    private ResultMemo resultMemo;
+    private CoprocessPool coprocessPool;
+    private Pattern outputKeyPattern;
     // end instance variables
 
     public AWSParameters( Map< String, String > input ) throws ParameterException {
@@ -89,6 +402,27 @@ public class AWSParameters extends CredentialParameters {
 	numThreads = makeNumThreads();
 	visibilityTimeout = makeVisibilityTimeout();
 	shouldShutdown = makeShouldShutdown();
+	prefetchSize = makePrefetchSize();
+	receiveWaitTime = makeReceiveWaitTime();
+	emptyReceivesBeforeExit = makeEmptyReceivesBeforeExit();
+	downloadThreads = intParam( DOWNLOAD_THREADS_ID,
+				    DEFAULT_DOWNLOAD_THREADS );
+	uploadThreads = intParam( UPLOAD_THREADS_ID,
+				  DEFAULT_UPLOAD_THREADS );
+	pipelineDepth = makePipelineDepth();
+	rangedGetThreshold = Long.parseLong( param( RANGED_GET_THRESHOLD_ID ) );
+	rangedGetParts = Math.max( 1, intParam( RANGED_GET_PARTS_ID,
+						 DEFAULT_RANGED_GET_PARTS ) );
+	multipartThreshold = Long.parseLong( param( MULTIPART_THRESHOLD_ID ) );
+	multipartPartSize = Math.max( MultipartUpload.MIN_PART_SIZE,
+				      Long.parseLong( param( MULTIPART_PART_SIZE_ID ) ) );
+	multipartConcurrency = Math.max( 1, intParam( MULTIPART_CONCURRENCY_ID,
+						       DEFAULT_MULTIPART_CONCURRENCY ) );
+	transferExecutor = null;
+	inputCache = null;
+	resultMemo = null;
+	coprocessPool = null;
+	outputKeyPattern = null;
     }
 
     public Map< String, String > getOptionalParams() {
@@ -116,6 +450,51 @@ public class AWSParameters extends CredentialParameters {
 	return param( QUEUE_URL_ID );
     }
 
+    public int getQueueShards() {
+	return Math.max( 1, intParam( QUEUE_SHARDS_ID,
+				       DEFAULT_QUEUE_SHARDS ) );
+    }
+
+    /**
+     * Gets the name or URL of the given shard of the queue with the
+     * given name or URL.
+     */
+    public static String shardOf( String queue,
+				  int shard ) {
+	return ( shard == 0 ) ? queue : queue + SHARD_SUFFIX + shard;
+    }
+
+    /**
+     * Gets the URLs of all the shards of the queue, starting with the
+     * queue itself.
+     */
+    public List< String > getShardUrls() {
+	List< String > retval = new ArrayList< String >();
+	for( int x = 0; x < getQueueShards(); x++ ) {
+	    retval.add( shardOf( getQueueUrl(), x ) );
+	}
+	return retval;
+    }
+
+    /**
+     * Gets which shard the file with the given name goes to.
+     */
+    public int shardFor( String fileName ) {
+	return Math.floorMod( fileName.hashCode(), getQueueShards() );
+    }
+
+    /**
+     * Gets the URL of the shard the given message was received from.
+     * Messages that didn't come from <code>getMessages</code> are taken
+     * to be from the queue itself.
+     */
+    public String getQueueUrl( Message message ) {
+	if ( message instanceof ShardMessage ) {
+	    return ( (ShardMessage)message ).getQueueUrl();
+	}
+	return getQueueUrl();
+    }
+
     public String getEnvironmentBucket() {
 	return param( ENVIRONMENT_BUCKET_NAME_ID );
     }
@@ -158,6 +537,9 @@ public class AWSParameters extends CredentialParameters {
 
     protected int makeNumThreads() {
 	int retval = Runtime.getRuntime().availableProcessors();
+	if ( isAutoNumThreads() ) {
+	    return retval;
+	}
 	try {
 	    int vis = Integer.parseInt( param( NUM_THREADS_ID ) );
 	    if ( vis > 0 ) { // < 0 should be impossible
@@ -171,10 +553,353 @@ public class AWSParameters extends CredentialParameters {
 	return retval;
     }
 
+    /**
+     * Gets the number of threads to use.
+     * If the number of threads is automatic, this is where to start.
+     */
     public int getNumThreads() {
 	return numThreads;
     }
 
+    /**
+     * Whether or not the number of threads should be adjusted as
+     * we go, based on how well things are running.
+     */
+    public boolean isAutoNumThreads() {
+	return param( NUM_THREADS_ID ).equals( NUM_THREADS_AUTO );
+    }
+
+    protected int makePrefetchSize() {
+	return getPrefetchSize( getNumThreads() );
+    }
+
+    /**
+     * Gets the prefetch size to use while running the given number of
+     * threads.  Unless the <code>prefetchSize</code> parameter was
+     * given, this grows with the number of threads.
+     */
+    public int getPrefetchSize( int numThreads ) {
+	int retval = numThreads * getBatchSize();
+	try {
+	    int size = Integer.parseInt( param( PREFETCH_SIZE_ID ) );
+	    if ( size > 0 ) { // < 0 should be impossible
+		retval = size;
+	    }
+	} catch ( NumberFormatException e ) {
+	    // shouldn't be possible
+	    e.printStackTrace();
+	    System.err.println( e );
+	}
+	return retval;
+    }
+
+    /**
+     * Gets the most messages a worker should hold onto locally
+     * before they are handed out to threads.
+     */
+    public int getPrefetchSize() {
+	return prefetchSize;
+    }
+
+    /**
+     * Parses the given parameter as an integer, falling back to
+     * the given default if it somehow isn't one.
+     */
+    protected int intParam( String key, int defaultValue ) {
+	int retval = defaultValue;
+	try {
+	    retval = Integer.parseInt( param( key ) );
+	} catch ( NumberFormatException e ) {
+	    // shouldn't be possible
+	    e.printStackTrace();
+	    System.err.println( e );
+	}
+	return retval;
+    }
+
+    protected int makeReceiveWaitTime() {
+	return intParam( RECEIVE_WAIT_TIME_ID,
+			 DEFAULT_RECEIVE_WAIT_TIME );
+    }
+
+    /**
+     * Gets how long, in seconds, a receive should wait for messages.
+     */
+    public int getReceiveWaitTime() {
+	return receiveWaitTime;
+    }
+
+    protected int makeEmptyReceivesBeforeExit() {
+	return intParam( EMPTY_RECEIVES_ID,
+			 DEFAULT_EMPTY_RECEIVES );
+    }
+
+    public int getEmptyReceivesBeforeExit() {
+	return emptyReceivesBeforeExit;
+    }
+
+    public String getWorkerMode() {
+	return param( WORKER_MODE_ID );
+    }
+
+    public boolean isPipelineMode() {
+	return getWorkerMode().equals( WORKER_MODE_PIPELINE );
+    }
+
+    public int getDownloadThreads() {
+	return downloadThreads;
+    }
+
+    public int getUploadThreads() {
+	return uploadThreads;
+    }
+
+    protected int makePipelineDepth() {
+	int retval = intParam( PIPELINE_DEPTH_ID,
+			       DEFAULT_PIPELINE_DEPTH );
+	return ( retval > 0 ) ? retval : getNumThreads() * getBatchSize();
+    }
+
+    /**
+     * Gets how many files can wait between any two stages in
+     * pipeline mode.
+     */
+    public int getPipelineDepth() {
+	return pipelineDepth;
+    }
+
+    public long getRangedGetThreshold() {
+	return rangedGetThreshold;
+    }
+
+    public int getRangedGetParts() {
+	return rangedGetParts;
+    }
+
+    public long getMultipartThreshold() {
+	return multipartThreshold;
+    }
+
+    /**
+     * Gets the size of each part of a multipart upload, in bytes.
+     * This is never smaller than what S3 allows.
+     */
+    public long getMultipartPartSize() {
+	return multipartPartSize;
+    }
+
+    public int getMultipartConcurrency() {
+	return multipartConcurrency;
+    }
+
+    /**
+     * Gets the local cache of input files, or null if input files
+     * aren't cached.
+     */
+    public synchronized InputCache getInputCache() {
+	long capacity = Long.parseLong( param( INPUT_CACHE_SIZE_ID ) );
+	if ( inputCache == null && capacity > 0 ) {
+	    inputCache = new InputCache( this,
+					 new File( param( INPUT_CACHE_DIR_ID ) ),
+					 capacity );
+	}
+	return inputCache;
+    }
+
+    public int getAnalysisTimeout() {
+	return intParam( ANALYSIS_TIMEOUT_ID,
+			 DEFAULT_ANALYSIS_TIMEOUT );
+    }
+
+    public int getMaxTaskRuntime() {
+	return intParam( MAX_TASK_RUNTIME_ID,
+			 DEFAULT_MAX_TASK_RUNTIME );
+    }
+
+    public int getTransferAllowance() {
+	return intParam( TRANSFER_ALLOWANCE_ID,
+			 DEFAULT_TRANSFER_ALLOWANCE );
+    }
+
+    public int getMaxReceiveCount() {
+	return intParam( MAX_RECEIVE_COUNT_ID,
+			 DEFAULT_MAX_RECEIVE_COUNT );
+    }
+
+    public boolean isFailOnExitCode() {
+	return Boolean.parseBoolean( param( FAIL_ON_EXIT_CODE_ID ) );
+    }
+
+    /**
+     * Gets how long a single run of the analysis program can take, in
+     * seconds, which is the smaller of the analysis timeout and the
+     * maximum task runtime.  Returns 0 if there is no limit.
+     */
+    public int getEffectiveAnalysisTimeout() {
+	return withMaxTaskRuntime( getAnalysisTimeout() );
+    }
+
+    /**
+     * Gets the smaller of the given timeout and the maximum task
+     * runtime, where 0 means no limit.
+     */
+    protected int withMaxTaskRuntime( int timeout ) {
+	int maxTaskRuntime = getMaxTaskRuntime();
+	if ( timeout == 0 || 
+	     ( maxTaskRuntime > 0 && maxTaskRuntime < timeout ) ) {
+	    return maxTaskRuntime;
+	}
+	return timeout;
+    }
+
+    /**
+     * Whether or not the analysis program is run on batches of files,
+     * as opposed to a file at a time.
+     */
+    public boolean isBatchInvocationMode() {
+	return param( INVOCATION_MODE_ID ).equals( INVOCATION_MODE_BATCH );
+    }
+
+    /**
+     * Gets the most files to pass to a single run of the analysis
+     * program.  This is 1 unless invocations are batched.
+     */
+    public int getBatchSize() {
+	if ( !isBatchInvocationMode() ) {
+	    return 1;
+	}
+	return Math.max( 1, intParam( BATCH_SIZE_ID,
+				       DEFAULT_BATCH_SIZE ) );
+    }
+
+    /**
+     * Whether or not the analysis program is kept running across files,
+     * as opposed to being run for each file.
+     */
+    public boolean isCoprocessInvocationMode() {
+	return param( INVOCATION_MODE_ID ).equals( INVOCATION_MODE_COPROCESS );
+    }
+
+    public int getCoprocessTimeout() {
+	return intParam( COPROCESS_TIMEOUT_ID,
+			 DEFAULT_COPROCESS_TIMEOUT );
+    }
+
+    /**
+     * Gets how long a coprocess can take on a single file, in seconds,
+     * which is the smaller of the coprocess timeout and the maximum
+     * task runtime.  Returns 0 if there is no limit.
+     */
+    public int getEffectiveCoprocessTimeout() {
+	return withMaxTaskRuntime( getCoprocessTimeout() );
+    }
+
+    public long getCoprocessMaxMemory() {
+	return Long.parseLong( param( COPROCESS_MAX_MEMORY_ID ) );
+    }
+
+    /**
+     * Gets the running copies of the analysis program, or null if the
+     * analysis program isn't kept running.
+     */
+    public synchronized CoprocessPool getCoprocessPool() {
+	if ( coprocessPool == null && isCoprocessInvocationMode() ) {
+	    coprocessPool = new CoprocessPool( this );
+	}
+	return coprocessPool;
+    }
+
+    public int getBundleMaxFiles() {
+	return Math.max( 1, intParam( BUNDLE_MAX_FILES_ID,
+				       DEFAULT_BUNDLE_MAX_FILES ) );
+    }
+
+    public long getBundleMaxBytes() {
+	return Long.parseLong( param( BUNDLE_MAX_BYTES_ID ) );
+    }
+
+    public int getEnqueueThreads() {
+	return Math.max( 1, intParam( ENQUEUE_THREADS_ID,
+				       DEFAULT_ENQUEUE_THREADS ) );
+    }
+
+    public int getListThreads() {
+	return Math.max( 1, intParam( LIST_THREADS_ID,
+				       DEFAULT_LIST_THREADS ) );
+    }
+
+    /**
+     * Gets where <code>BucketToQueue</code> saves how far it got in
+     * filling the queue with the given name.
+     */
+    public String getCheckpointLocation( String queueName ) {
+	String retval = param( CHECKPOINT_LOCATION_ID );
+	return retval.equals( "" ) ? queueName + CHECKPOINT_SUFFIX : retval;
+    }
+
+    /**
+     * Gets what the key of the output of the input file with the given
+     * key is expected to be.
+     */
+    public synchronized String getOutputKey( String inputKey ) {
+	if ( outputKeyPattern == null ) {
+	    outputKeyPattern = Pattern.compile( param( OUTPUT_KEY_PATTERN_ID ) );
+	}
+	return outputKeyPattern.matcher( inputKey )
+	    .replaceFirst( param( OUTPUT_KEY_REPLACEMENT_ID ) );
+    }
+
+    /**
+     * Gets the index of earlier results, or null if results aren't
+     * memoized.
+     */
+    public synchronized ResultMemo getResultMemo() {
+	if ( resultMemo == null &&
+	     Boolean.parseBoolean( param( MEMOIZE_RESULTS_ID ) ) ) {
+	    resultMemo = new ResultMemo( this );
+	}
+	return resultMemo;
+    }
+
+    /**
+     * Whether or not inputs are streamed to the analysis program's
+     * stdin instead of being downloaded first.
+     */
+    public boolean isStdinInputMode() {
+	return param( INPUT_MODE_ID ).equals( INPUT_MODE_STDIN );
+    }
+
+    /**
+     * Whether or not the analysis program's stdout is uploaded as its
+     * output, as opposed to naming its output file.
+     */
+    public boolean isStdoutObjectOutputMode() {
+	return param( OUTPUT_MODE_ID ).equals( OUTPUT_MODE_STDOUT_OBJECT );
+    }
+
+    /**
+     * Gets the threads shared by all parallel transfers, so that the
+     * total number of connections stays bounded no matter how many
+     * files are in flight.
+     * Work running on these threads must not wait on other work
+     * running on these threads.
+     */
+    public synchronized ExecutorService getTransferExecutor() {
+	if ( transferExecutor == null ) {
+	    transferExecutor = 
+		Executors.newFixedThreadPool( Math.max( 1, intParam( TRANSFER_THREADS_ID,
+								     DEFAULT_TRANSFER_THREADS ) ),
+					      new ThreadFactory() {
+						  public Thread newThread( Runnable runnable ) {
+						      Thread retval = new Thread( runnable );
+						      retval.setDaemon( true );
+						      return retval;
+						  }
+					      } );
+	}
+	return transferExecutor;
+    }
+
     public static void validateNonNegative( String stored,
 					    String message ) throws ParameterException {
 	try {
@@ -187,6 +912,30 @@ public class AWSParameters extends CredentialParameters {
 	}
     }
 
+    public static void validatePositive( String stored,
+					 String message ) throws ParameterException {
+	try {
+	    int num = Integer.parseInt( stored );
+	    if ( num <= 0 ) {
+		throw new NumberFormatException();
+	    }
+	} catch ( NumberFormatException e ) {
+	    throw new ParameterException( message );
+	}
+    }
+
+    public static void validateNonNegativeLong( String stored,
+						String message ) throws ParameterException {
+	try {
+	    long num = Long.parseLong( stored );
+	    if ( num < 0 ) {
+		throw new NumberFormatException();
+	    }
+	} catch ( NumberFormatException e ) {
+	    throw new ParameterException( message );
+	}
+    }
+
     public static void validateInSet( String stored,
 				      String[] valid,
 				      String message ) throws ParameterException {
@@ -216,9 +965,73 @@ public class AWSParameters extends CredentialParameters {
 			 " or \"false\"" );
     }
 
+    public static void validateInvocationParams( Map< String, String > params )
+	throws ParameterException {
+	String mode = params.get( INVOCATION_MODE_ID );
+	validateInSet( mode,
+		       INVOCATION_MODES,
+		       "The invocation mode must be one of \"" + INVOCATION_MODE_SINGLE +
+		       "\", \"" + INVOCATION_MODE_BATCH + "\", or \"" +
+		       INVOCATION_MODE_COPROCESS + "\"" );
+	validateNonNegative( params.get( ANALYSIS_TIMEOUT_ID ),
+			     "The analysis timeout must be a non-negative integer" );
+	validateNonNegative( params.get( MAX_TASK_RUNTIME_ID ),
+			     "The maximum task runtime must be a non-negative integer" );
+	validateNonNegative( params.get( TRANSFER_ALLOWANCE_ID ),
+			     "The transfer allowance must be a non-negative integer" );
+	validateNonNegative( params.get( MAX_RECEIVE_COUNT_ID ),
+			     "The maximum receive count must be a non-negative integer" );
+	validateNonNegative( params.get( BATCH_SIZE_ID ),
+			     "The batch size must be a non-negative integer" );
+	validateNonNegative( params.get( COPROCESS_TIMEOUT_ID ),
+			     "The coprocess timeout must be a non-negative integer" );
+	validateNonNegativeLong( params.get( COPROCESS_MAX_MEMORY_ID ),
+				 "The most memory for a coprocess must be a " +
+				 "non-negative number of bytes" );
+	if ( !mode.equals( INVOCATION_MODE_SINGLE ) &&
+	     ( !params.get( INPUT_MODE_ID ).equals( INPUT_MODE_FILE ) ||
+	       !params.get( OUTPUT_MODE_ID ).equals( OUTPUT_MODE_FILE ) ) ) {
+	    throw new ParameterException( "The \"" + mode + 
+					  "\" invocation mode needs the \"" +
+					  INPUT_MODE_FILE + "\" input and output modes" );
+	}
+    }
+
+    public static void validateBundleParams( Map< String, String > params )
+	throws ParameterException {
+	validateNonNegative( params.get( BUNDLE_MAX_FILES_ID ),
+			     "The most files in a bundle must be a non-negative integer" );
+	validateNonNegativeLong( params.get( BUNDLE_MAX_BYTES_ID ),
+				 "The most bytes in a bundle must be a " +
+				 "non-negative number of bytes" );
+	validateNonNegative( params.get( ENQUEUE_THREADS_ID ),
+			     "The number of enqueue threads must be a non-negative integer" );
+	validateNonNegative( params.get( LIST_THREADS_ID ),
+			     "The number of list threads must be a non-negative integer" );
+    }
+
+    public static void validateOutputKeyPattern( String stored ) 
+	throws ParameterException {
+	try {
+	    Pattern.compile( stored );
+	} catch ( PatternSyntaxException e ) {
+	    throw new ParameterException( "The output key pattern must be a " +
+					  "regular expression: " + e.getMessage() );
+	}
+    }
+
+    public static void validateMemoizeResults( String stored ) throws ParameterException {
+	validateBoolean( stored,
+			 "Whether or not to memoize results must be either \"true\"" +
+			 " or \"false\"" );
+    }
+
     public static void validateNumThreads( String stored ) throws ParameterException {
-	validateNonNegative( stored,
-			     "The number of threads must be a non-negative integer" );
+	if ( !NUM_THREADS_AUTO.equals( stored ) ) {
+	    validateNonNegative( stored,
+				 "The number of threads must be a non-negative integer " +
+				 "or \"" + NUM_THREADS_AUTO + "\"" );
+	}
     }
 
     public static void validateVisibility( String stored ) throws ParameterException {
@@ -226,6 +1039,80 @@ public class AWSParameters extends CredentialParameters {
 			     "The visibility timeout must be a non-negative integer" );
     }
 
+    public static void validatePrefetchSize( String stored ) throws ParameterException {
+	validateNonNegative( stored,
+			     "The prefetch size must be a non-negative integer" );
+    }
+
+    public static void validateReceiveWaitTime( String stored ) throws ParameterException {
+	String message = 
+	    "The receive wait time must be an integer between 0 and " +
+	    MAX_RECEIVE_WAIT_TIME;
+	validateNonNegative( stored, message );
+	if ( Integer.parseInt( stored ) > MAX_RECEIVE_WAIT_TIME ) {
+	    throw new ParameterException( message );
+	}
+    }
+
+    public static void validateWorkerMode( String stored ) throws ParameterException {
+	validateInSet( stored,
+		       WORKER_MODES,
+		       "The worker mode must be either \"" + WORKER_MODE_THREADS +
+		       "\" or \"" + WORKER_MODE_PIPELINE + "\"" );
+    }
+
+    public static void validatePipelineParams( Map< String, String > params ) 
+	throws ParameterException {
+	validatePositive( params.get( DOWNLOAD_THREADS_ID ),
+			  "The number of download threads must be a positive integer" );
+	validatePositive( params.get( UPLOAD_THREADS_ID ),
+			  "The number of upload threads must be a positive integer" );
+	validateNonNegative( params.get( PIPELINE_DEPTH_ID ),
+			     "The pipeline depth must be a non-negative integer" );
+    }
+
+    public static void validateTransferParams( Map< String, String > params )
+	throws ParameterException {
+	validateNonNegative( params.get( TRANSFER_THREADS_ID ),
+			     "The number of transfer threads must be a non-negative integer" );
+	validateNonNegative( params.get( RANGED_GET_PARTS_ID ),
+			     "The number of ranged get parts must be a non-negative integer" );
+	validateNonNegativeLong( params.get( RANGED_GET_THRESHOLD_ID ),
+				 "The ranged get threshold must be a " +
+				 "non-negative number of bytes" );
+	validateNonNegativeLong( params.get( MULTIPART_THRESHOLD_ID ),
+				 "The multipart threshold must be a " +
+				 "non-negative number of bytes" );
+	validateNonNegativeLong( params.get( MULTIPART_PART_SIZE_ID ),
+				 "The multipart part size must be a " +
+				 "non-negative number of bytes" );
+	validateNonNegative( params.get( MULTIPART_CONCURRENCY_ID ),
+			     "The multipart concurrency must be a non-negative integer" );
+	validateNonNegativeLong( params.get( INPUT_CACHE_SIZE_ID ),
+				 "The input cache size must be a " +
+				 "non-negative number of bytes" );
+    }
+
+    public static void validateInputMode( String stored ) throws ParameterException {
+	validateInSet( stored,
+		       INPUT_MODES,
+		       "The input mode must be either \"" + INPUT_MODE_FILE +
+		       "\" or \"" + INPUT_MODE_STDIN + "\"" );
+    }
+
+    public static void validateOutputMode( String stored ) throws ParameterException {
+	validateInSet( stored,
+		       OUTPUT_MODES,
+		       "The output mode must be either \"" + OUTPUT_MODE_FILE +
+		       "\" or \"" + OUTPUT_MODE_STDOUT_OBJECT + "\"" );
+    }
+
+    public static void validateEmptyReceives( String stored ) throws ParameterException {
+	validateNonNegative( stored,
+			     "The number of empty receives before exiting must be " +
+			     "a non-negative integer" );
+    }
+
     /**
      * Overridden to validate the visibility timout and the number of threads.
      */
@@ -236,19 +1123,73 @@ public class AWSParameters extends CredentialParameters {
 	validateNumThreads( retval.get( NUM_THREADS_ID ) );
 	validateVisibility( retval.get( VISIBILITY_TIMEOUT_ID ) );
 	validateShouldShutdown( retval.get( SHOULD_SHUTDOWN_ID ) );
+	validatePrefetchSize( retval.get( PREFETCH_SIZE_ID ) );
+	validateReceiveWaitTime( retval.get( RECEIVE_WAIT_TIME_ID ) );
+	validateEmptyReceives( retval.get( EMPTY_RECEIVES_ID ) );
+	validateWorkerMode( retval.get( WORKER_MODE_ID ) );
+	validatePipelineParams( retval );
+	validateTransferParams( retval );
+	validateInputMode( retval.get( INPUT_MODE_ID ) );
+	validateOutputMode( retval.get( OUTPUT_MODE_ID ) );
+	validateMemoizeResults( retval.get( MEMOIZE_RESULTS_ID ) );
+	validateBoolean( retval.get( FAIL_ON_EXIT_CODE_ID ),
+			 "Whether or not to fail on an exit code must be either \"true\"" +
+			 " or \"false\"" );
+	validateBundleParams( retval );
+	validateNonNegative( retval.get( QUEUE_SHARDS_ID ),
+			     "The number of queue shards must be a non-negative integer" );
+	validateOutputKeyPattern( retval.get( OUTPUT_KEY_PATTERN_ID ) );
+	validateInvocationParams( retval );
 
 	return retval;
     }
 
+    /**
+     * Makes an SQS message request with the given visibility,
+     * max number of messages, and number of seconds to wait for
+     * messages to arrive.  Waiting (long polling) asks every SQS
+     * server for messages instead of just a sample of them.
+     * Asks for the attributes that mark bundles of files and hold their
+     * sizes, and for how many times each message has been received.
+     */
+    public ReceiveMessageRequest makeMessageRequest( int visibility,
+						     int maxNumber,
+						     int waitTime ) {
+	return makeMessageRequest( getQueueUrl(),
+				   visibility,
+				   maxNumber,
+				   waitTime );
+    }
+
+    /**
+     * Like <code>makeMessageRequest</code>, but receives from the queue
+     * with the given URL, such as one of the shards.
+     */
+    public ReceiveMessageRequest makeMessageRequest( String queueURL,
+						     int visibility,
+						     int maxNumber,
+						     int waitTime ) {
+	return new ReceiveMessageRequest( queueURL )
+	    .withVisibilityTimeout( Integer.valueOf( visibility ) )
+	    .withMaxNumberOfMessages( Integer.valueOf( maxNumber ) )
+	    .withWaitTimeSeconds( Integer.valueOf( waitTime ) )
+	    .withAttributeNames( APPROXIMATE_RECEIVE_COUNT )
+	    .withMessageAttributeNames( Bundle.BUNDLE_ATTRIBUTE,
+					Bundle.SIZE_ATTRIBUTE,
+					Bundle.ETAG_ATTRIBUTE,
+					Bundle.LAST_MODIFIED_ATTRIBUTE );
+    }
+
     /**
      * Makes an SQS message request with the given visibility and
-     * max number of messages
+     * max number of messages, waiting as long as the
+     * <code>receiveWaitTime</code> parameter says.
      */
     public ReceiveMessageRequest makeMessageRequest( int visibility,
 						     int maxNumber ) {
-	return new ReceiveMessageRequest( getQueueUrl() )
-	    .withVisibilityTimeout( new Integer( visibility ) )
-	    .withMaxNumberOfMessages( new Integer( maxNumber ) );
+	return makeMessageRequest( visibility,
+				   maxNumber,
+				   getReceiveWaitTime() );
     }
 
     /**
@@ -261,10 +1202,16 @@ public class AWSParameters extends CredentialParameters {
     }
 
     /**
-     * Gets messages from SQS using the given request
+     * Gets messages from SQS using the given request.  Each is a
+     * <code>ShardMessage</code> that knows the queue it came from.
      */
     public List< Message > getMessages( ReceiveMessageRequest request ) {
-	return getSQS().receiveMessage( request ).getMessages();
+	List< Message > retval = new ArrayList< Message >();
+	for( Message message : getSQS().receiveMessage( request ).getMessages() ) {
+	    retval.add( new ShardMessage( message,
+					  request.getQueueUrl() ) );
+	}
+	return retval;
     }
 
     /**
@@ -279,7 +1226,7 @@ public class AWSParameters extends CredentialParameters {
      * Makes a request to delete the given message
      */
     public DeleteMessageRequest makeDeleteMessageRequest( Message message ) {
-	return new DeleteMessageRequest( getQueueUrl(),
+	return new DeleteMessageRequest( getQueueUrl( message ),
 					 message.getReceiptHandle() );
     }
 
@@ -292,14 +1239,185 @@ public class AWSParameters extends CredentialParameters {
     }
 
     /**
-     * Gets the given file from the given bucket
+     * Groups the indices of the given messages by the shard they came
+     * from, since batch requests only go to a single queue.
+     */
+    protected Map< String, List< Integer > > byShard( List< Message > messages ) {
+	Map< String, List< Integer > > retval = 
+	    new LinkedHashMap< String, List< Integer > >();
+	for( int x = 0; x < messages.size(); x++ ) {
+	    String queueURL = getQueueUrl( messages.get( x ) );
+	    List< Integer > indices = retval.get( queueURL );
+	    if ( indices == null ) {
+		indices = new ArrayList< Integer >();
+		retval.put( queueURL, indices );
+	    }
+	    indices.add( Integer.valueOf( x ) );
+	}
+	return retval;
+    }
+
+    /**
+     * Deletes all the given messages with a single request per shard.
+     * There can be at most <code>MAX_NUMBER_MESSAGES</code> messages.
+     * Entries are identified by their index in the list.
+     */
+    public DeleteMessageBatchResult deleteMessages( List< Message > messages ) {
+	DeleteMessageBatchResult retval = new DeleteMessageBatchResult()
+	    .withSuccessful( new ArrayList< DeleteMessageBatchResultEntry >() )
+	    .withFailed( new ArrayList< BatchResultErrorEntry >() );
+	for( Map.Entry< String, List< Integer > > shard : byShard( messages ).entrySet() ) {
+	    List< DeleteMessageBatchRequestEntry > entries =
+		new ArrayList< DeleteMessageBatchRequestEntry >();
+	    for( Integer x : shard.getValue() ) {
+		entries.add( new DeleteMessageBatchRequestEntry( x.toString(),
+								 messages.get( x ).getReceiptHandle() ) );
+	    }
+	    DeleteMessageBatchResult result = 
+		getSQS().deleteMessageBatch( new DeleteMessageBatchRequest( shard.getKey(),
+									    entries ) );
+	    retval.getSuccessful().addAll( result.getSuccessful() );
+	    retval.getFailed().addAll( result.getFailed() );
+	}
+	return retval;
+    }
+
+    /**
+     * Sets the visibility timeout of the given message to the given
+     * number of seconds, starting from now.
+     */
+    public void changeMessageVisibility( Message message,
+					 int visibility ) {
+	getSQS().changeMessageVisibility( 
+	  new ChangeMessageVisibilityRequest( getQueueUrl( message ),
+					      message.getReceiptHandle(),
+					      Integer.valueOf( visibility ) ) );
+    }
+
+    /**
+     * Sets the visibility timeout of all the given messages to the
+     * given number of seconds with a single request per shard.
+     * There can be at most <code>MAX_NUMBER_MESSAGES</code> messages.
+     * Entries are identified by their index in the list.
+     */
+    public ChangeMessageVisibilityBatchResult changeMessageVisibility( List< Message > messages,
+								       int visibility ) {
+	ChangeMessageVisibilityBatchResult retval = new ChangeMessageVisibilityBatchResult()
+	    .withSuccessful( new ArrayList< ChangeMessageVisibilityBatchResultEntry >() )
+	    .withFailed( new ArrayList< BatchResultErrorEntry >() );
+	for( Map.Entry< String, List< Integer > > shard : byShard( messages ).entrySet() ) {
+	    List< ChangeMessageVisibilityBatchRequestEntry > entries =
+		new ArrayList< ChangeMessageVisibilityBatchRequestEntry >();
+	    for( Integer x : shard.getValue() ) {
+		entries.add( new ChangeMessageVisibilityBatchRequestEntry( x.toString(),
+									   messages.get( x ).getReceiptHandle() )
+			     .withVisibilityTimeout( Integer.valueOf( visibility ) ) );
+	    }
+	    ChangeMessageVisibilityBatchResult result = 
+		getSQS().changeMessageVisibilityBatch( 
+		  new ChangeMessageVisibilityBatchRequest( shard.getKey(),
+							   entries ) );
+	    retval.getSuccessful().addAll( result.getSuccessful() );
+	    retval.getFailed().addAll( result.getFailed() );
+	}
+	return retval;
+    }
+
+    /**
+     * Gets the given file from the given bucket.
+     * If input files are cached, the file comes from the cache.
+     * Files at least as big as the ranged get threshold are downloaded
+     * as several ranges at once.
+     * The ETag and size of the file are looked up if they're needed
+     * and eTag is null.  If eTag isn't null, only that version of the
+     * file is gotten.
+     * @throws ObjectChangedException If the file no longer has the
+     * given ETag
      */
     public void getObjectNoRetry( String bucket,
 				  String fileName,
-				  File localFile ) {
-	getS3().getObject( new GetObjectRequest( bucket,
-						 fileName ),
-			   localFile );
+				  String eTag,
+				  long size,
+				  File localFile ) throws IOException {
+	InputCache cache = getInputCache();
+	if ( cache != null || getRangedGetThreshold() > 0 ) {
+	    if ( eTag == null || size < 0 ) {
+		ObjectMetadata metadata = getS3().getObjectMetadata( bucket, fileName );
+		eTag = metadata.getETag();
+		size = metadata.getContentLength();
+	    }
+	    if ( cache != null ) {
+		cache.getObject( bucket,
+				 fileName,
+				 eTag,
+				 size,
+				 localFile );
+	    } else {
+		downloadObject( bucket,
+				fileName,
+				eTag,
+				size,
+				localFile );
+	    }
+	} else if ( eTag != null ) {
+	    downloadObject( bucket, fileName, eTag, size, localFile );
+	} else {
+	    getS3().getObject( new GetObjectRequest( bucket,
+						     fileName ),
+			       localFile );
+	}
+    }
+
+    /**
+     * Downloads the version of the given file with the given ETag and
+     * size.  Files at least as big as the ranged get threshold are
+     * downloaded as several ranges at once.
+     * @throws ObjectChangedException If the file no longer has the
+     * given ETag
+     */
+    public void downloadObject( String bucket,
+				String fileName,
+				String eTag,
+				long size,
+				File localFile ) throws IOException {
+	if ( getRangedGetThreshold() > 0 &&
+	     size >= getRangedGetThreshold() ) {
+	    new RangedDownload( this, bucket, fileName, eTag, size )
+		.download( localFile, getRangedGetParts() );
+	    return;
+	}
+	ObjectMetadata metadata;
+	try {
+	    metadata = getS3().getObject( new GetObjectRequest( bucket,
+								fileName )
+					  .withMatchingETagConstraint( eTag ),
+					  localFile );
+	} catch ( AmazonServiceException e ) {
+	    if ( isPreconditionFailed( e ) ) {
+		throw new ObjectChangedException( fileName );
+	    }
+	    throw e;
+	}
+	if ( metadata == null ) {
+	    throw new ObjectChangedException( fileName );
+	}
+    }
+
+    /**
+     * Whether or not the given exception means the object didn't have
+     * the ETag we asked for.
+     */
+    public static boolean isPreconditionFailed( AmazonServiceException e ) {
+	return e.getStatusCode() == PRECONDITION_FAILED_STATUS;
+    }
+
+    /**
+     * Whether or not the given exception means the object wasn't
+     * there.
+     */
+    public static boolean isNoSuchKey( AmazonServiceException e ) {
+	return NO_SUCH_KEY.equals( e.getErrorCode() ) ||
+	    e.getStatusCode() == NOT_FOUND_STATUS;
     }
 
     /**
@@ -309,16 +1427,55 @@ public class AWSParameters extends CredentialParameters {
      */
     public void getObject( String bucket,
 			   String fileName,
-			   File localFile ) {
+			   File localFile ) throws IOException {
+	getObject( bucket, fileName, null, -1, localFile );
+    }
+
+    /**
+     * Like <code>getObject</code>, but with the ETag and size of the
+     * file already known, so that they needn't be looked up.
+     * eTag is null and size is -1 if they aren't known.
+     */
+    public void getObject( String bucket,
+			   String fileName,
+			   String eTag,
+			   long size,
+			   File localFile ) throws IOException {
 	int seconds = START_SECONDS_TO_RETRY;
-	for( int x = 0; x < NUM_RETRIES; x++ ) {
+	for( int x = 1; ; x++ ) {
 	    try {
-		getObjectNoRetry( bucket, fileName, localFile );
-		break;
+		getObjectNoRetry( bucket, fileName, eTag, size, localFile );
+		return;
 	    } catch ( AmazonServiceException e ) {
-		if ( e.getErrorCode().equals( NO_SUCH_KEY ) ) { //HACK
+		if ( isNoSuchKey( e ) && x < NUM_RETRIES ) { //HACK
 		    try {
-			Thread.sleep( seconds );
+			Thread.sleep( seconds * 1000L );
+		    } catch ( InterruptedException e1 ) {
+			throw e;
+		    }
+		    seconds *= 2;
+		} else {
+		    throw e;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Opens the given file in the given bucket for reading, with the
+     * same retries as <code>getObject</code>.
+     * The stream must be closed (or aborted, if not read to the end).
+     */
+    public S3ObjectInputStream openObject( String bucket,
+					   String fileName ) {
+	int seconds = START_SECONDS_TO_RETRY;
+	for( int x = 1; ; x++ ) {
+	    try {
+		return getS3().getObject( bucket, fileName ).getObjectContent();
+	    } catch ( AmazonServiceException e ) {
+		if ( isNoSuchKey( e ) && x < NUM_RETRIES ) {
+		    try {
+			Thread.sleep( seconds * 1000L );
 		    } catch ( InterruptedException e1 ) {
 			throw e;
 		    }
@@ -334,25 +1491,78 @@ public class AWSParameters extends CredentialParameters {
      * Gets the given file from the input bucket
      */
     public void getObject( String fileName,
-			   File localFile ) {
+			   File localFile ) throws IOException {
 	getObject( getInputBucket(),
 		   fileName,
 		   localFile );
     }
 
+    /**
+     * Gets the input file of the given task, using the metadata that
+     * came with it when there is some.
+     * If the file changed since then, the task is given the metadata
+     * of the latest version, which is gotten instead.
+     */
+    public void getObject( Task task,
+			   File localFile ) throws IOException {
+	try {
+	    getObject( getInputBucket(),
+		       task.getFileName(),
+		       task.getETag(),
+		       task.getSize(),
+		       localFile );
+	} catch ( ObjectChangedException e ) {
+	    System.err.println( e + "; getting the latest version" );
+	    task.setMetadata( null, -1 );
+	    lookUpMetadata( task );
+	    getObject( getInputBucket(),
+		       task.getFileName(),
+		       task.getETag(),
+		       task.getSize(),
+		       localFile );
+	}
+    }
+
+    /**
+     * Looks up the ETag and size of the input file of the given task,
+     * unless they came with it.
+     */
+    public void lookUpMetadata( Task task ) {
+	if ( !task.hasMetadata() ) {
+	    ObjectMetadata metadata = 
+		getS3().getObjectMetadata( getInputBucket(),
+					   task.getFileName() );
+	    task.setMetadata( metadata.getETag(),
+			      metadata.getContentLength() );
+	}
+    }
+
+    /**
+     * Puts the given file in the given bucket.
+     * Files at least as big as the multipart threshold are uploaded
+     * as several parts at once.
+     */
     public void putObject( String bucket,
 			   String fileName,
-			   File localFile ) {
-	getS3().putObject( bucket,
-			   fileName,
-			   localFile );
+			   File localFile ) throws IOException {
+	if ( getMultipartThreshold() > 0 &&
+	     localFile.length() >= getMultipartThreshold() ) {
+	    MultipartUpload.uploadFile( this,
+					bucket,
+					fileName,
+					localFile );
+	} else {
+	    getS3().putObject( bucket,
+			       fileName,
+			       localFile );
+	}
     }
 
     /**
      * Puts the given file in the output bucket
      */
     public void putObject( String fileName,
-			   File localFile ) {
+			   File localFile ) throws IOException {
 	putObject( getOutputBucket(),
 		   fileName,
 		   localFile );
@@ -363,10 +1573,124 @@ public class AWSParameters extends CredentialParameters {
      */
     public String executeProgramInEnvironment( String args ) 
 	throws IOException {
+	return JobControl.executeProgram( inEnvironment( args ) );
+    }
+
+    /**
+     * Executes the given string in the execution environment, with
+     * the given stream as its stdin.
+     */
+    public String executeProgramInEnvironment( String args,
+					       InputStream stdin ) 
+	throws IOException {
+	return JobControl.executeProgram( inEnvironment( args ),
+					  stdin );
+    }
+
+    /**
+     * Makes a command that runs the given string in the execution
+     * environment.
+     */
+    public String[] inEnvironment( String args ) {
 	String toExecute = 
 	    "cd '" + getEnvironmentPrefix() + "'; " + args;
-	return JobControl.executeProgram( new String[]{ "sh", "-c",
-							toExecute } );
+	return new String[]{ "sh", "-c", toExecute };
+    }
+
+    /**
+     * Gets the string that runs the analysis program on the given file
+     */
+    public String analysisCommand( String fileName ) {
+	return "./" + getAnalysisProgramName() + " '" + fileName + "'";
+    }
+
+    /**
+     * Runs the given analysis command in the execution environment,
+     * with the given stream (if not null) as its stdin.  The command is
+     * killed if it runs for longer than the analysis timeout.
+     * @throws IOException If the command timed out, or exited with a
+     * non-zero status and the <code>failOnExitCode</code> parameter is
+     * set
+     */
+    public ProcessResult runAnalysis( String command,
+				      InputStream stdin ) throws IOException {
+	int timeout = getEffectiveAnalysisTimeout();
+	ProcessResult retval = JobControl.run( inEnvironment( command ),
+					       stdin,
+					       timeout );
+	if ( retval.isTimedOut() ) {
+	    throw new AnalysisException( "The analysis program ran for more than " +
+					 timeout + " seconds",
+					 retval,
+					 timeout == getMaxTaskRuntime() );
+	} else if ( isFailOnExitCode() && retval.getExitCode() != 0 ) {
+	    throw new AnalysisException( "The analysis program failed",
+					 retval,
+					 false );
+	}
+	return retval;
+    }
+
+    /**
+     * Gets roughly how many times the given message has been received,
+     * counting this time.
+     */
+    public static int receiveCount( Message message ) {
+	try {
+	    return Integer.parseInt( message.getAttributes().get( APPROXIMATE_RECEIVE_COUNT ) );
+	} catch ( NumberFormatException e ) {
+	    // we didn't ask for it
+	    return 1;
+	}
+    }
+
+    /**
+     * Whether or not the queue has a dead-letter queue, which it does
+     * if files can be given up on for good.
+     */
+    public boolean hasDeadLetterQueue() {
+	return getMaxReceiveCount() > 0 || getMaxTaskRuntime() > 0;
+    }
+
+    public String getDeadLetterQueueUrl() {
+	return getQueueUrl() + DEAD_LETTER_QUEUE_SUFFIX;
+    }
+
+    protected static MessageAttributeValue stringAttribute( String value ) {
+	return new MessageAttributeValue()
+	    .withDataType( "String" )
+	    .withStringValue( value );
+    }
+
+    /**
+     * Sends the file with the given name to the dead-letter queue,
+     * along with why it failed and, if the analysis program ran, what
+     * came of it.  The message can be moved back to the queue as is to
+     * try the file again.
+     */
+    public void sendToDeadLetterQueue( String fileName,
+				       String reason,
+				       ProcessResult result ) {
+	SendMessageRequest request =
+	    new SendMessageRequest( getDeadLetterQueueUrl(),
+				    fileName )
+	    .addMessageAttributesEntry( FAILURE_REASON_ATTRIBUTE,
+					stringAttribute( reason ) );
+	if ( result != null ) {
+	    request.addMessageAttributesEntry( EXIT_CODE_ATTRIBUTE,
+					       new MessageAttributeValue()
+					       .withDataType( "Number" )
+					       .withStringValue( Integer.toString( result.getExitCode() ) ) );
+	    String stderr = result.getStderr();
+	    if ( stderr.length() > MAX_STDERR_TAIL ) {
+		stderr = stderr.substring( stderr.length() - MAX_STDERR_TAIL );
+	    }
+	    if ( stderr.trim().length() > 0 ) {
+		request.addMessageAttributesEntry( STDERR_TAIL_ATTRIBUTE,
+						   stringAttribute( stderr ) );
+	    }
+	}
+	getSQS().sendMessage( request );
     }
 
     /**
@@ -374,9 +1698,169 @@ public class AWSParameters extends CredentialParameters {
      */
     public String doAnalysis( String fileName ) 
 	throws IOException {
-	String executionString =
-	    "./" + getAnalysisProgramName() + " '" + fileName + "'";
-	return executeProgramInEnvironment( executionString );
+	return JobControl.joinLines( runAnalysis( analysisCommand( fileName ),
+						   null ).getStdout() );
+    }
+
+    /**
+     * Analyzes a file with the given name in the execution environment
+     * with one of the copies of the analysis program that are kept
+     * running.
+     */
+    public String doCoprocessAnalysis( String fileName )
+	throws IOException {
+	return getCoprocessPool().analyze( fileName );
+    }
+
+    /**
+     * Analyzes the files with the given names in the execution
+     * environment with a single run of the analysis program.
+     * Returns a line of output for each file, in order, naming its
+     * output file.  If the program stops early, there are fewer lines
+     * than files.
+     */
+    public List< String > doBatchAnalysis( List< String > fileNames )
+	throws IOException {
+	StringBuilder command = 
+	    new StringBuilder( "./" + getAnalysisProgramName() );
+	for( String fileName : fileNames ) {
+	    command.append( " '" + fileName + "'" );
+	}
+	ProcessResult result = runAnalysis( command.toString(), null );
+	if ( result.isStdoutTruncated() ) {
+	    throw new IOException( "The analysis program printed too much" );
+	}
+	return JobControl.splitLines( result.getStdout() );
+    }
+
+    /**
+     * Gets the lines of output that a batch run of the analysis program
+     * finished printing before it failed with the given result.
+     * A line that was cut off partway isn't one of them.  If the
+     * output is unknown, or too long to have been kept whole, there are
+     * none.
+     */
+    public static List< String > reportedLines( ProcessResult result ) {
+	if ( result == null || result.isStdoutTruncated() ) {
+	    return new ArrayList< String >();
+	}
+	String stdout = result.getStdout();
+	int end = Math.max( stdout.lastIndexOf( '\n' ),
+			    stdout.lastIndexOf( '\r' ) );
+	return JobControl.splitLines( stdout.substring( 0, end + 1 ) );
+    }
+
+    /**
+     * Analyzes the file with the given name in the input bucket,
+     * streaming it straight from S3 to the analysis program's stdin.
+     * Nothing is written to the local disk.
+     */
+    public String doAnalysisOnStream( String fileName ) 
+	throws IOException {
+	S3ObjectInputStream input = openObject( getInputBucket(), fileName );
+	try {
+	    return JobControl.joinLines( runAnalysis( analysisCommand( fileName ),
+						       input ).getStdout() );
+	} finally {
+	    // if the program didn't read everything, don't bother
+	    // downloading the rest just to close the connection
+	    input.abort();
+	}
+    }
+
+    /**
+     * Analyzes the file with the given name, uploading whatever the
+     * analysis program prints to the output bucket as it is printed.
+     * The output has the same name as the input.
+     * The input is streamed as well if inputs are streamed.
+     * The upload only goes through if the program succeeds, within the
+     * analysis timeout.
+     * Returns false if the program printed nothing, in which case
+     * nothing is uploaded.
+     */
+    public boolean doAnalysisToObject( String fileName )
+	throws IOException {
+	S3ObjectInputStream input = 
+	    isStdinInputMode() ? openObject( getInputBucket(), fileName ) : null;
+	try {
+	    final int timeout = getEffectiveAnalysisTimeout();
+	    String[] args = inEnvironment( analysisCommand( fileName ) );
+	    if ( timeout > 0 ) {
+		args = JobControl.inOwnProcessGroup( args );
+	    }
+	    final TailBuffer stderr = new TailBuffer( JobControl.STDERR_CAPTURE );
+	    Pair< Process, Thread > started = JobControl.startProgram( args, stderr );
+	    final Process process = started.first;
+	    final Thread stderrDrainer = started.second;
+	    final JobControl.Feeder feeder = JobControl.feed( process, input );
+	    try {
+		final JobControl.Watchdog watchdog = ( timeout > 0 ) ?
+		    JobControl.Watchdog.watch( process,
+					       JobControl.readLine( process.getInputStream() ),
+					       timeout ) : null;
+		return MultipartUpload.uploadStream( this,
+						     getOutputBucket(),
+						     fileName,
+						     process.getInputStream(),
+						     new MultipartUpload.Verifier() {
+							 public void verify() throws IOException {
+							     checkAnalysis( process,
+									    stderr,
+									    stderrDrainer,
+									    feeder,
+									    watchdog,
+									    timeout );
+							 }
+						     } );
+	    } finally {
+		process.destroyForcibly();
+		JobControl.finishProgram( process );
+	    }
+	} finally {
+	    if ( input != null ) {
+		input.abort();
+	    }
+	}
+    }
+
+    /**
+     * Waits for the given analysis program, whose stdout has been read
+     * to the end, and throws if it didn't succeed.  What the program
+     * said on its stderr goes along with the failure.
+     * The watchdog is null if there is no timeout.
+     */
+    protected void checkAnalysis( Process process,
+				  TailBuffer stderr,
+				  Thread stderrDrainer,
+				  JobControl.Feeder feeder,
+				  JobControl.Watchdog watchdog,
+				  int timeout ) throws IOException {
+	try {
+	    process.waitFor();
+	    stderrDrainer.join( JobControl.DRAIN_MILLISECONDS );
+	} catch ( InterruptedException e ) {
+	    throw new InterruptedIOException( "Interrupted while running the analysis program" );
+	}
+	if ( feeder != null ) {
+	    feeder.check();
+	}
+	boolean timedOut = watchdog != null && watchdog.isTimedOut();
+	// stdout went to S3, so there is none to keep
+	ProcessResult result = new ProcessResult( process.exitValue(),
+						  new TailBuffer( 1 ),
+						  stderr,
+						  timedOut );
+	if ( timedOut ) {
+	    throw new AnalysisException( "The analysis program ran for more than " +
+					 timeout + " seconds",
+					 result,
+					 timeout == getMaxTaskRuntime() );
+	} else if ( process.exitValue() != 0 ) {
+	    throw new AnalysisException( "The analysis program failed with exit code " +
+					 process.exitValue(),
+					 result,
+					 false );
+	}
     }
 
     public void prepEnvironment() throws IOException {
@@ -393,12 +1877,48 @@ public class AWSParameters extends CredentialParameters {
 	    .withAttributeNames( APPROXIMATE_NUM_MESSAGES );
     }
     
+    /**
+     * Gets roughly how many messages are waiting, across all shards.
+     */
     public int approximateNumEnqueuedMessages() {
+	int retval = 0;
+	for( String queueURL : getShardUrls() ) {
+	    retval += approximateQueueCount( approximateNumEnqueuedMessagesRequest()
+					     .withQueueUrl( queueURL ),
+					     APPROXIMATE_NUM_MESSAGES );
+	}
+	return retval;
+    }
+
+    public GetQueueAttributesRequest approximateNumInFlightMessagesRequest() {
+	return new GetQueueAttributesRequest( getQueueUrl() )
+	    .withAttributeNames( APPROXIMATE_NUM_MESSAGES_NOT_VISIBLE );
+    }
+
+    /**
+     * Gets roughly how many messages have been received but not yet
+     * deleted, across all workers and shards.
+     */
+    public int approximateNumInFlightMessages() {
+	int retval = 0;
+	for( String queueURL : getShardUrls() ) {
+	    retval += approximateQueueCount( approximateNumInFlightMessagesRequest()
+					     .withQueueUrl( queueURL ),
+					     APPROXIMATE_NUM_MESSAGES_NOT_VISIBLE );
+	}
+	return retval;
+    }
+
+    /**
+     * Sends the given request and parses the given attribute of the
+     * result as a count.
+     */
+    protected int approximateQueueCount( GetQueueAttributesRequest request,
+					 String attribute ) {
 	try {
 	    return Integer.parseInt( 
-		     getSQS().getQueueAttributes( 
-		       approximateNumEnqueuedMessagesRequest() )
-		     .getAttributes().get( APPROXIMATE_NUM_MESSAGES ) );
+		     getSQS().getQueueAttributes( request )
+		     .getAttributes().get( attribute ) );
 	} catch ( NumberFormatException e ) {
 	    // impossible
 	    e.printStackTrace();
@@ -408,6 +1928,17 @@ public class AWSParameters extends CredentialParameters {
 					  "queue or massive API error" );
     }
 
+    /**
+     * Checks that there is nothing waiting in the queue and nothing
+     * being processed that could come back to it.
+     * These counts are approximate, so this is only meaningful once
+     * receives have also come back empty.
+     */
+    public boolean isQueueDrained() {
+	return approximateNumEnqueuedMessages() == 0 &&
+	    approximateNumInFlightMessages() == 0;
+    }
+
     public boolean doesInputBucketExist() {
 	return doesBucketExist( getInputBucket() );
     }
@@ -426,10 +1957,11 @@ public class AWSParameters extends CredentialParameters {
     }
 
     /**
-     * Checks that the overall run queue exists.
+     * Checks that the overall run queue exists, along with all of its
+     * shards.
      */
     public boolean doesQueueExist() {
-	return doesQueueExist( getQueueUrl() );
+	return listQueuesByUrl().containsAll( getShardUrls() );
     }
 
     public static AWSParameters makeParameters() 
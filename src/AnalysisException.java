@@ -0,0 +1,38 @@
+import java.io.*;
+
+/**
+ * Thrown when the analysis program fails on a file, as opposed to
+ * something going wrong around it.
+ * Holds what came of running the program, if it ran to completion or
+ * was killed, and whether the file should go straight to the
+ * dead-letter queue instead of being tried again.
+ */
+public class AnalysisException extends IOException {
+    // begin instance variables
+    private final ProcessResult result;
+    private final boolean poison;
+    // end instance variables
+
+    public AnalysisException( String message,
+			      ProcessResult result,
+			      boolean poison ) {
+	super( message );
+	this.result = result;
+	this.poison = poison;
+    }
+
+    /**
+     * Gets what came of running the analysis program, or null if
+     * that isn't known.
+     */
+    public ProcessResult getResult() {
+	return result;
+    }
+
+    /**
+     * Whether or not the file should not be tried again.
+     */
+    public boolean isPoison() {
+	return poison;
+    }
+}
@@ -6,22 +6,118 @@ import com.amazonaws.services.s3.*;
 import com.amazonaws.services.s3.model.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 /**
  * Given an AWS bucket, it will put all the filenames found in that
  * bucket into an SQS queue.
+ * The bucket is listed in <code>listThreads</code> parts at once, and
+ * each page is sent while the next is listed, by
+ * <code>enqueueThreads</code> threads using batch sends.  This doesn't
+ * hold the whole listing, so it works the same for buckets of any size.
+ * Small files can be bundled several to a message, as the
+ * <code>bundleMaxFiles</code> and <code>bundleMaxBytes</code>
+ * parameters say.
+ * How far it has gotten is saved to a checkpoint every
+ * <code>CHECKPOINT_SECONDS</code>, so that if it stops partway through,
+ * running it again with <code>--resume</code> sends only what is left.
+ * The checkpoint is removed once everything has been sent.
+ * With <code>--incremental</code>, files that already have output in
+ * the output bucket are left out, which is handy for finishing a run
+ * after its queue's messages expired.  The output keys are found with
+ * the <code>outputKeyPattern</code> and
+ * <code>outputKeyReplacement</code> parameters.
+ * With <code>--largest-first</code>, files are sent from largest to
+ * smallest, so that the big ones don't hold up the end of a run.  SQS
+ * doesn't promise any order, but it roughly keeps this one.  This lists
+ * the whole bucket before sending anything, sorting on disk if need be,
+ * and doesn't keep a checkpoint.
+ * If the <code>queueShards</code> parameter is more than one, files are
+ * spread across the shards of the queue by a hash of their names, and
+ * are only bundled with other files of the same shard.
  * @author Kyle Dewey
  */
 public class BucketToQueue {
+    // begin constants
+    public static final int CHECKPOINT_SECONDS = 30;
+    public static final String RESUME_FLAG = "--resume";
+    public static final String INCREMENTAL_FLAG = "--incremental";
+    public static final String LARGEST_FIRST_FLAG = "--largest-first";
+    // end constants
+
+    /**
+     * The files waiting to be sent to a single shard as one message.
+     */
+    protected static class PendingBundle {
+	// begin instance variables
+	public final List< S3ObjectSummary > files;
+	// the partition each file came from
+	public final List< ParallelListing.Partition > partitions;
+	public long bytes;
+	public int length;
+	// end instance variables
+
+	public PendingBundle() {
+	    files = new ArrayList< S3ObjectSummary >();
+	    partitions = new ArrayList< ParallelListing.Partition >();
+	    bytes = 0;
+	    length = 0;
+	}
+    }
+
     // begin instance variables
     private final AWSParameters params;
     private final MakeQueue makeQueue;
+    private boolean incremental;
+    private boolean largestFirst;
+    // keys in the output bucket, if incremental
+    private OutputIndex outputIndex;
     // end instance variables
 
     public BucketToQueue( AWSParameters params ) {
 	this.params = params;
 	this.makeQueue = new MakeQueue( params );
+	incremental = false;
+	largestFirst = false;
+	outputIndex = null;
+    }
+
+    /**
+     * Sets whether or not to send the largest files first.
+     */
+    public void setLargestFirst( boolean largestFirst ) {
+	this.largestFirst = largestFirst;
+    }
+
+    /**
+     * Sets whether or not to leave out files that already have output.
+     */
+    public void setIncremental( boolean incremental ) {
+	this.incremental = incremental;
+    }
+
+    /**
+     * Whether or not the given file already has output.
+     * The output index can mistake one key for another, so a match is
+     * checked with S3 before the file is left out.  If it can't be
+     * checked, the file is sent again.
+     */
+    protected boolean hasOutput( S3ObjectSummary summary ) {
+	if ( outputIndex == null ) {
+	    return false;
+	}
+	String outputKey = params.getOutputKey( summary.getKey() );
+	if ( !outputIndex.contains( outputKey ) ) {
+	    return false;
+	}
+	try {
+	    return params.doesObjectExistInBucket( outputKey,
+						   params.getOutputBucket() );
+	} catch ( AmazonClientException e ) {
+	    System.err.println( "Could not check for output " + outputKey + ": " + e );
+	    return false;
+	}
     }
 
     /**
@@ -29,23 +125,240 @@ public class BucketToQueue {
      */
     public String bucketToQueue( String bucketName,
 				 String queueName ) throws IOException {
-	String queueURL = makeQueue.makeQueue( queueName );
-	for( String fileName : ListBucket.listBucket( params.getS3(), bucketName ) ) {
-	    params.getSQS().sendMessage( new SendMessageRequest( queueURL, fileName ) );
+	return bucketToQueue( bucketName, queueName, false );
+    }
+
+    /**
+     * @param resume Whether to send only what is left according to
+     * the checkpoint, instead of starting over
+     * @return the URL of the created queue
+     * @throws IOException If there is a checkpoint and we aren't
+     * resuming, or the other way around
+     */
+    public String bucketToQueue( String bucketName,
+				 String queueName,
+				 boolean resume ) throws IOException {
+	final Checkpoint checkpoint = 
+	    new Checkpoint( params.getS3(),
+			    params.getCheckpointLocation( queueName ) );
+	List< ParallelListing.Partition > remaining = checkpoint.load();
+	if ( resume && remaining == null ) {
+	    throw new IOException( "There is no checkpoint at " + 
+				   checkpoint.getLocation() );
+	} else if ( resume && largestFirst ) {
+	    throw new IOException( "Can't use " + RESUME_FLAG + " with " + 
+				   LARGEST_FIRST_FLAG );
+	} else if ( !resume && remaining != null ) {
+	    throw new IOException( "There is a checkpoint at " + 
+				   checkpoint.getLocation() + 
+				   "; use " + RESUME_FLAG + 
+				   " to continue from it, or remove it to start over" );
+	}
+	ParallelListing listing = resume ?
+	    new ParallelListing( params.getS3(),
+				 bucketName,
+				 remaining,
+				 params.getListThreads(),
+				 false ) :
+	    new ParallelListing( params.getS3(),
+				 bucketName,
+				 "",
+				 params.getListThreads(),
+				 false );
+
+	if ( incremental ) {
+	    System.err.println( "Listing " + params.getOutputBucket() + "..." );
+	    outputIndex = new OutputIndex( params.getS3(),
+					   params.getOutputBucket(),
+					   params.getListThreads() );
+	    System.err.println( "Found " + outputIndex.size() + " output files" );
+	}
+
+	List< String > queueURLs = makeQueue.makeShards( queueName );
+	QueueSender sender = new QueueSender( params, queueURLs );
+	ScheduledExecutorService saver = 
+	    Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+		    public Thread newThread( Runnable runnable ) {
+			Thread retval = new Thread( runnable );
+			retval.setDaemon( true );
+			return retval;
+		    }
+		} );
+	long numFailed;
+	try {
+	    ParallelListing.Cursor cursor = listing.iterator();
+	    if ( largestFirst ) {
+		System.err.println( "Sorting " + bucketName + " by size..." );
+		enqueue( SizeSorter.sort( cursor ), null, queueURLs, sender, null );
+	    } else {
+		checkpoint.start( listing.getPartitions() );
+		checkpoint.save();
+		saver.scheduleWithFixedDelay( new Runnable() {
+			public void run() {
+			    saveCheckpoint( checkpoint );
+			}
+		    },
+		    CHECKPOINT_SECONDS,
+		    CHECKPOINT_SECONDS,
+		    TimeUnit.SECONDS );
+		enqueue( cursor, cursor, queueURLs, sender, checkpoint );
+	    }
+	} catch ( InterruptedException e ) {
+	    throw new IOException( "Interrupted while enqueueing", e );
+	} finally {
+	    numFailed = sender.shutdown();
+	    saver.shutdown();
+	    try {
+		saver.awaitTermination( CHECKPOINT_SECONDS, TimeUnit.SECONDS );
+	    } catch ( InterruptedException e ) {}
+	    if ( !largestFirst ) {
+		saveCheckpoint( checkpoint );
+	    }
+	}
+	if ( numFailed > 0 ) {
+	    throw new IOException( "Could not enqueue " + numFailed + " files" +
+				   ( largestFirst ? "" :
+				     "; use " + RESUME_FLAG + " to try them again" ) );
+	}
+	if ( !largestFirst ) {
+	    checkpoint.delete();
+	}
+	return queueURLs.get( 0 );
+    }
+
+    protected static void saveCheckpoint( Checkpoint checkpoint ) {
+	try {
+	    checkpoint.save();
+	} catch ( IOException e ) {
+	    System.err.println( "Could not save the checkpoint: " + e );
+	} catch ( AmazonClientException e ) {
+	    System.err.println( "Could not save the checkpoint: " + e );
 	}
-	return queueURL;
+    }
+
+    /**
+     * Sends all the given files to the shards with the given URLs with
+     * the given sender, bundling them as the parameters say.
+     * If there is a checkpoint, what has been sent is recorded in it,
+     * using the given cursor to tell which partition each file came
+     * from.
+     */
+    protected void enqueue( Iterator< S3ObjectSummary > files,
+			    ParallelListing.Cursor cursor,
+			    List< String > queueURLs,
+			    QueueSender sender,
+			    Checkpoint checkpoint ) throws InterruptedException {
+	int maxFiles = params.getBundleMaxFiles();
+	long maxBytes = params.getBundleMaxBytes();
+	PendingBundle[] bundles = new PendingBundle[ queueURLs.size() ];
+	for( int x = 0; x < bundles.length; x++ ) {
+	    bundles[ x ] = new PendingBundle();
+	}
+	long numSkipped = 0;
+	while ( files.hasNext() ) {
+	    S3ObjectSummary summary = files.next();
+	    ParallelListing.Partition partition = 
+		( checkpoint == null ) ? null : cursor.getPartition();
+	    if ( checkpoint != null ) {
+		checkpoint.listed( partition, summary.getKey() );
+	    }
+	    if ( hasOutput( summary ) ) {
+		// as good as sent
+		if ( checkpoint != null ) {
+		    checkpoint.sent( partition, summary.getKey() );
+		}
+		numSkipped++;
+		continue;
+	    }
+	    int shard = ( queueURLs.size() == 1 ) ? 
+		0 : params.shardFor( summary.getKey() );
+	    PendingBundle bundle = bundles[ shard ];
+	    int lineLength = Bundle.encodeLine( summary ).length() + 1;
+	    if ( !bundle.files.isEmpty() &&
+		 ( bundle.files.size() >= maxFiles ||
+		   ( maxBytes > 0 && bundle.bytes + summary.getSize() > maxBytes ) ||
+		   bundle.length + lineLength > Bundle.MAX_BODY_LENGTH ) ) {
+		sendFiles( sender, queueURLs.get( shard ), bundle, checkpoint );
+		bundle = new PendingBundle();
+		bundles[ shard ] = bundle;
+	    }
+	    bundle.files.add( summary );
+	    bundle.partitions.add( partition );
+	    bundle.bytes += summary.getSize();
+	    bundle.length += lineLength;
+	}
+	for( int x = 0; x < bundles.length; x++ ) {
+	    if ( !bundles[ x ].files.isEmpty() ) {
+		sendFiles( sender, queueURLs.get( x ), bundles[ x ], checkpoint );
+	    }
+	}
+	if ( incremental ) {
+	    System.err.println( "Left out " + numSkipped + 
+				" files that already have output" );
+	}
+    }
+
+    /**
+     * Sends the files of the given bundle to the queue with the given
+     * URL as a single message.
+     * If there is a checkpoint, the files are recorded in it as sent,
+     * or as failed if the message couldn't be sent.
+     */
+    protected void sendFiles( QueueSender sender,
+			      String queueURL,
+			      final PendingBundle bundle,
+			      final Checkpoint checkpoint ) throws InterruptedException {
+	sender.send( Bundle.makeSendRequest( queueURL, bundle.files ),
+		     bundle.files.size(),
+		     ( checkpoint == null ) ? null : new Runnable() {
+			 public void run() {
+			     for( int x = 0; x < bundle.files.size(); x++ ) {
+				 checkpoint.sent( bundle.partitions.get( x ),
+						  bundle.files.get( x ).getKey() );
+			     }
+			 }
+		     },
+		     ( checkpoint == null ) ? null : new Runnable() {
+			 public void run() {
+			     for( int x = 0; x < bundle.files.size(); x++ ) {
+				 checkpoint.failed( bundle.partitions.get( x ),
+						    bundle.files.get( x ) );
+			     }
+			 }
+		     } );
     }
 
     public static void main( String[] args ) {
-	if ( args.length != 2 ) {
-	    System.err.println( "Needs the name of an S3 bucket and a name of an SQS queue." );
+	List< String > names = new ArrayList< String >();
+	boolean resume = false;
+	boolean incremental = false;
+	boolean largestFirst = false;
+	for( String arg : args ) {
+	    if ( arg.equals( RESUME_FLAG ) ) {
+		resume = true;
+	    } else if ( arg.equals( INCREMENTAL_FLAG ) ) {
+		incremental = true;
+	    } else if ( arg.equals( LARGEST_FIRST_FLAG ) ) {
+		largestFirst = true;
+	    } else {
+		names.add( arg );
+	    }
+	}
+	if ( names.size() != 2 ) {
+	    System.err.println( "Needs the name of an S3 bucket and a name of an SQS queue, " +
+				"optionally with " + RESUME_FLAG + ", " +
+				INCREMENTAL_FLAG + ", and/or " + LARGEST_FIRST_FLAG + "." );
 	    System.exit( 1 );
 	}
 
 	try {
 	    BucketToQueue btq = new BucketToQueue( AWSParameters.makeLocalParameters() );
+	    btq.setIncremental( incremental );
+	    btq.setLargestFirst( largestFirst );
 	    System.out.println( "Queue URL: " + 
-				btq.bucketToQueue( args[ 0 ], args[ 1 ] ) );
+				btq.bucketToQueue( names.get( 0 ), 
+						   names.get( 1 ),
+						   resume ) );
 	} catch ( Exception e ) {
 	    e.printStackTrace();
 	    System.err.println( e );
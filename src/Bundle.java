@@ -0,0 +1,232 @@
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.sqs.model.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Several small input files sent as a single message, so that they
+ * share the cost of receiving, tracking, and deleting it.
+ * The body has one line per file, holding the size of the file, its
+ * ETag (or "-"), when it was last modified in milliseconds since the
+ * epoch (or -1), and its URL-encoded name.  Bundles are marked with the
+ * <code>BUNDLE_ATTRIBUTE</code> message attribute, which holds how many
+ * files there are.
+ * Every message sent by <code>BucketToQueue</code> also has the
+ * <code>SIZE_ATTRIBUTE</code> message attribute, which holds the total
+ * size of its files in bytes.  A lone file also has its ETag and
+ * when it was last modified in the <code>ETAG_ATTRIBUTE</code> and
+ * <code>LAST_MODIFIED_ATTRIBUTE</code> message attributes, so that
+ * workers don't need to look them up before downloading it.
+ * The message is deleted once every file has been finished with.
+ * Files that failed are first sent back to the queue on their own,
+ * with the metadata from their lines, so that one bad file doesn't make
+ * the whole bundle come back.
+ */
+public class Bundle {
+    // begin constants
+    public static final String BUNDLE_ATTRIBUTE = "Bundle";
+    public static final String SIZE_ATTRIBUTE = "Size";
+    public static final String ETAG_ATTRIBUTE = "ETag";
+    public static final String LAST_MODIFIED_ATTRIBUTE = "LastModified";
+    public static final String NO_ETAG = "-";
+    // SQS allows 256 KB, some of which goes to attributes
+    public static final int MAX_BODY_LENGTH = 1024 * 250;
+    public static final String ENCODING = "UTF-8";
+    // end constants
+
+    // begin instance variables
+    private final Message message;
+    private final List< Task > tasks;
+    private final Map< Task, S3ObjectSummary > files;
+    private final List< S3ObjectSummary > failedFiles;
+    private int numUnfinished;
+    // end instance variables
+
+    /**
+     * @throws IllegalArgumentException If the body isn't a bundle
+     */
+    public Bundle( Message message ) {
+	this.message = message;
+	tasks = new ArrayList< Task >();
+	files = new HashMap< Task, S3ObjectSummary >();
+	failedFiles = new ArrayList< S3ObjectSummary >();
+	for( String line : message.getBody().split( "\n" ) ) {
+	    S3ObjectSummary file = decodeLine( line );
+	    Task task = new Task( message,
+				  file.getKey(),
+				  file.getSize(),
+				  file.getETag(),
+				  this );
+	    tasks.add( task );
+	    files.put( task, file );
+	}
+	numUnfinished = tasks.size();
+    }
+
+    public Message getMessage() {
+	return message;
+    }
+
+    public List< Task > getTasks() {
+	return tasks;
+    }
+
+    /**
+     * Notes that the given file of this bundle has been finished with.
+     * Returns true if it was the last one.
+     */
+    public synchronized boolean finished( Task task,
+					  boolean succeeded ) {
+	if ( !succeeded ) {
+	    failedFiles.add( files.get( task ) );
+	}
+	numUnfinished--;
+	return numUnfinished == 0;
+    }
+
+    /**
+     * Gets the files of this bundle that weren't processed, as read
+     * from their lines.
+     */
+    public synchronized List< S3ObjectSummary > getFailedFiles() {
+	return new ArrayList< S3ObjectSummary >( failedFiles );
+    }
+
+    public static boolean isBundle( Message message ) {
+	return message.getMessageAttributes().containsKey( BUNDLE_ATTRIBUTE );
+    }
+
+    /**
+     * Gets the total size of the files in the given message in bytes,
+     * or -1 if it wasn't sent with one.
+     */
+    public static long messageSize( Message message ) {
+	MessageAttributeValue value = 
+	    message.getMessageAttributes().get( SIZE_ATTRIBUTE );
+	try {
+	    return ( value == null ) ? -1 : Long.parseLong( value.getStringValue() );
+	} catch ( NumberFormatException e ) {
+	    return -1;
+	}
+    }
+
+    /**
+     * Gets the ETag of the lone file in the given message, or null if
+     * it wasn't sent with one.
+     */
+    public static String messageETag( Message message ) {
+	MessageAttributeValue value = 
+	    message.getMessageAttributes().get( ETAG_ATTRIBUTE );
+	return ( value == null ) ? null : value.getStringValue();
+    }
+
+    protected static MessageAttributeValue numberAttribute( long value ) {
+	return new MessageAttributeValue()
+	    .withDataType( "Number" )
+	    .withStringValue( Long.toString( value ) );
+    }
+
+    public static String encode( String fileName ) {
+	try {
+	    return URLEncoder.encode( fileName, ENCODING );
+	} catch ( UnsupportedEncodingException e ) {
+	    // every JVM has UTF-8
+	    throw new RuntimeException( e );
+	}
+    }
+
+    public static String decode( String encoded ) {
+	try {
+	    return URLDecoder.decode( encoded, ENCODING );
+	} catch ( UnsupportedEncodingException e ) {
+	    // every JVM has UTF-8
+	    throw new RuntimeException( e );
+	}
+    }
+
+    /**
+     * Gets the line of a bundle's body for the given file.
+     */
+    public static String encodeLine( S3ObjectSummary summary ) {
+	String eTag = summary.getETag();
+	Date lastModified = summary.getLastModified();
+	return summary.getSize() + " " +
+	    ( ( eTag == null || eTag.isEmpty() ) ? NO_ETAG : eTag ) + " " +
+	    ( ( lastModified == null ) ? -1 : lastModified.getTime() ) + " " +
+	    encode( summary.getKey() );
+    }
+
+    /**
+     * Reads a line of a bundle's body.  The bucket isn't known, so it
+     * isn't set.
+     * @throws IllegalArgumentException If the line can't be read
+     */
+    public static S3ObjectSummary decodeLine( String line ) {
+	// lines from before metadata was sent only have the size and name
+	String[] fields = line.split( " " );
+	if ( fields.length != 2 && fields.length != 4 ) {
+	    throw new IllegalArgumentException( "Bad line in bundle: " + line );
+	}
+	S3ObjectSummary retval = new S3ObjectSummary();
+	retval.setKey( decode( fields[ fields.length - 1 ] ) );
+	// NumberFormatException is an IllegalArgumentException
+	retval.setSize( Long.parseLong( fields[ 0 ] ) );
+	if ( fields.length > 2 ) {
+	    if ( !fields[ 1 ].equals( NO_ETAG ) ) {
+		retval.setETag( fields[ 1 ] );
+	    }
+	    long lastModified = Long.parseLong( fields[ 2 ] );
+	    if ( lastModified >= 0 ) {
+		retval.setLastModified( new Date( lastModified ) );
+	    }
+	}
+	return retval;
+    }
+
+    /**
+     * Makes a request that sends the given files to the given queue.
+     * A lone file is sent as a plain message holding its name, with
+     * its metadata in message attributes.
+     */
+    public static SendMessageRequest makeSendRequest( String queueURL,
+						      List< S3ObjectSummary > files ) {
+	long size = 0;
+	for( S3ObjectSummary summary : files ) {
+	    size += summary.getSize();
+	}
+	if ( files.size() == 1 ) {
+	    S3ObjectSummary summary = files.get( 0 );
+	    SendMessageRequest retval = 
+		new SendMessageRequest( queueURL,
+					summary.getKey() )
+		.addMessageAttributesEntry( SIZE_ATTRIBUTE,
+					    numberAttribute( size ) );
+	    if ( summary.getETag() != null && !summary.getETag().isEmpty() ) {
+		retval.addMessageAttributesEntry( ETAG_ATTRIBUTE,
+						  new MessageAttributeValue()
+						  .withDataType( "String" )
+						  .withStringValue( summary.getETag() ) );
+	    }
+	    if ( summary.getLastModified() != null ) {
+		retval.addMessageAttributesEntry( LAST_MODIFIED_ATTRIBUTE,
+						  numberAttribute( summary.getLastModified().getTime() ) );
+	    }
+	    return retval;
+	}
+	StringBuilder body = new StringBuilder();
+	for( S3ObjectSummary summary : files ) {
+	    if ( body.length() > 0 ) {
+		body.append( "\n" );
+	    }
+	    body.append( encodeLine( summary ) );
+	}
+	return new SendMessageRequest( queueURL,
+				       body.toString() )
+	    .addMessageAttributesEntry( BUNDLE_ATTRIBUTE,
+					numberAttribute( files.size() ) )
+	    .addMessageAttributesEntry( SIZE_ATTRIBUTE,
+					numberAttribute( size ) );
+    }
+}
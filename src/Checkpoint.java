@@ -0,0 +1,285 @@
+import com.amazonaws.*;
+import com.amazonaws.services.s3.*;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * How far <code>BucketToQueue</code> got through a bucket, so that it
+ * can pick up where it left off if it stops partway through.
+ * For each partition of the listing, this keeps the last key that was
+ * sent or given up on along with every key before it in the partition.
+ * Only keys that have been listed but not sent yet are held in memory,
+ * along with those that were given up on, which are saved as a
+ * partition of their own so that they are tried again.
+ * It is saved as text, one partition per line, to a local file, or to
+ * S3 if the location looks like <code>s3://bucket/key</code>.
+ */
+public class Checkpoint {
+    // begin constants
+    public static final String S3_SCHEME = "s3://";
+    public static final String ENCODING = "UTF-8";
+    // the kinds of lines
+    public static final String RANGE = "range";
+    public static final String KNOWN = "known";
+    // what a missing value is saved as; others start with VALUE
+    public static final String NONE = "-";
+    public static final String VALUE = "=";
+    // end constants
+
+    /**
+     * What has been sent from a single partition.
+     */
+    protected static class Progress {
+	// begin instance variables
+	// listed but not sent, in key order
+	public final LinkedList< String > pending;
+	public final Set< String > sentEarly;
+	public String lastSent;
+	// end instance variables
+
+	public Progress() {
+	    pending = new LinkedList< String >();
+	    sentEarly = new HashSet< String >();
+	    lastSent = null;
+	}
+    }
+
+    // begin instance variables
+    private final AmazonS3 s3;
+    private final String location;
+    private final Map< ParallelListing.Partition, Progress > progress;
+    // files that could not be sent
+    private final List< S3ObjectSummary > failed;
+    // end instance variables
+
+    public Checkpoint( AmazonS3 s3,
+		       String location ) {
+	this.s3 = s3;
+	this.location = location;
+	progress = new LinkedHashMap< ParallelListing.Partition, Progress >();
+	failed = new ArrayList< S3ObjectSummary >();
+    }
+
+    public String getLocation() {
+	return location;
+    }
+
+    /**
+     * Starts keeping track of the given partitions.
+     */
+    public synchronized void start( List< ParallelListing.Partition > partitions ) {
+	progress.clear();
+	failed.clear();
+	for( ParallelListing.Partition partition : partitions ) {
+	    progress.put( partition, new Progress() );
+	}
+    }
+
+    /**
+     * Records that the given key was listed from the given partition.
+     * Keys must be recorded in the order they were listed.
+     */
+    public synchronized void listed( ParallelListing.Partition partition,
+				     String key ) {
+	progress.get( partition ).pending.add( key );
+    }
+
+    /**
+     * Records that the given key from the given partition was sent.
+     */
+    public synchronized void sent( ParallelListing.Partition partition,
+				   String key ) {
+	Progress current = progress.get( partition );
+	current.sentEarly.add( key );
+	while ( !current.pending.isEmpty() &&
+		current.sentEarly.remove( current.pending.getFirst() ) ) {
+	    current.lastSent = current.pending.removeFirst();
+	}
+    }
+
+    /**
+     * Records that the given file from the given partition could not be
+     * sent.  It is kept to be tried again, and otherwise counts as
+     * sent, so that the files after it aren't held up.
+     */
+    public synchronized void failed( ParallelListing.Partition partition,
+				     S3ObjectSummary summary ) {
+	failed.add( summary );
+	sent( partition, summary.getKey() );
+    }
+
+    /**
+     * Gets what is left to send, starting with what could not be sent.
+     */
+    public synchronized List< ParallelListing.Partition > remaining() {
+	List< ParallelListing.Partition > retval = 
+	    new ArrayList< ParallelListing.Partition >();
+	if ( !failed.isEmpty() ) {
+	    retval.add( new ParallelListing.Partition( new ArrayList< S3ObjectSummary >( failed ) ) );
+	}
+	for( Map.Entry< ParallelListing.Partition, Progress > entry : progress.entrySet() ) {
+	    ParallelListing.Partition partition = entry.getKey();
+	    if ( entry.getValue().lastSent != null ) {
+		partition = partition.after( entry.getValue().lastSent );
+	    }
+	    if ( partition.known == null || !partition.known.isEmpty() ) {
+		retval.add( partition );
+	    }
+	}
+	return retval;
+    }
+
+    protected static String encode( String value ) {
+	return ( value == null ) ? NONE : VALUE + Bundle.encode( value );
+    }
+
+    protected static String decode( String encoded ) {
+	return encoded.equals( NONE ) ? null : Bundle.decode( encoded.substring( VALUE.length() ) );
+    }
+
+    /**
+     * Gets the text that is saved for the given partitions.
+     */
+    public static String format( List< ParallelListing.Partition > partitions ) {
+	StringBuilder retval = new StringBuilder();
+	for( ParallelListing.Partition partition : partitions ) {
+	    if ( partition.known == null ) {
+		retval.append( RANGE + " " +
+			       encode( partition.prefix ) + " " +
+			       encode( partition.marker ) + " " +
+			       encode( partition.last ) );
+	    } else {
+		retval.append( KNOWN );
+		for( S3ObjectSummary summary : partition.known ) {
+		    retval.append( " " + summary.getSize() +
+				   " " + encode( summary.getKey() ) );
+		}
+	    }
+	    retval.append( "\n" );
+	}
+	return retval.toString();
+    }
+
+    /**
+     * Reads partitions from text made by <code>format</code>.
+     * @throws IOException If the text is malformed
+     */
+    public static List< ParallelListing.Partition > parse( String text ) 
+	throws IOException {
+	List< ParallelListing.Partition > retval = 
+	    new ArrayList< ParallelListing.Partition >();
+	try {
+	    for( String line : text.split( "\n" ) ) {
+		if ( line.length() == 0 ) {
+		    continue;
+		}
+		String[] fields = line.split( " " );
+		if ( fields[ 0 ].equals( RANGE ) && fields.length == 4 ) {
+		    retval.add( new ParallelListing.Partition( decode( fields[ 1 ] ),
+							       decode( fields[ 2 ] ),
+							       decode( fields[ 3 ] ) ) );
+		} else if ( fields[ 0 ].equals( KNOWN ) && fields.length % 2 == 1 ) {
+		    List< S3ObjectSummary > known = new ArrayList< S3ObjectSummary >();
+		    for( int x = 1; x < fields.length; x += 2 ) {
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setSize( Long.parseLong( fields[ x ] ) );
+			summary.setKey( decode( fields[ x + 1 ] ) );
+			known.add( summary );
+		    }
+		    retval.add( new ParallelListing.Partition( known ) );
+		} else {
+		    throw new IOException( "Malformed checkpoint line: " + line );
+		}
+	    }
+	} catch ( RuntimeException e ) {
+	    throw new IOException( "Malformed checkpoint", e );
+	}
+	return retval;
+    }
+
+    protected boolean isInS3() {
+	return location.startsWith( S3_SCHEME );
+    }
+
+    protected String getBucket() {
+	String path = location.substring( S3_SCHEME.length() );
+	return path.substring( 0, path.indexOf( '/' ) );
+    }
+
+    protected String getKey() {
+	String path = location.substring( S3_SCHEME.length() );
+	return path.substring( path.indexOf( '/' ) + 1 );
+    }
+
+    /**
+     * Saves what is left to send.
+     */
+    public void save() throws IOException {
+	byte[] bytes = format( remaining() ).getBytes( ENCODING );
+	if ( isInS3() ) {
+	    ObjectMetadata metadata = new ObjectMetadata();
+	    metadata.setContentLength( bytes.length );
+	    s3.putObject( getBucket(),
+			  getKey(),
+			  new ByteArrayInputStream( bytes ),
+			  metadata );
+	} else {
+	    // so that dying partway through writing doesn't lose it
+	    File file = new File( location );
+	    File temp = new File( location + ".tmp" );
+	    OutputStream output = new FileOutputStream( temp );
+	    try {
+		output.write( bytes );
+	    } finally {
+		output.close();
+	    }
+	    if ( !temp.renameTo( file ) ) {
+		throw new IOException( "Could not save the checkpoint to " + location );
+	    }
+	}
+    }
+
+    /**
+     * Gets what was left to send as of the last save, or null if there
+     * isn't a checkpoint.
+     */
+    public List< ParallelListing.Partition > load() throws IOException {
+	InputStream input;
+	if ( isInS3() ) {
+	    try {
+		input = s3.getObject( getBucket(), getKey() ).getObjectContent();
+	    } catch ( AmazonServiceException e ) {
+		if ( AWSParameters.isNoSuchKey( e ) ) {
+		    return null;
+		}
+		throw e;
+	    }
+	} else {
+	    try {
+		input = new FileInputStream( location );
+	    } catch ( FileNotFoundException e ) {
+		return null;
+	    }
+	}
+	try {
+	    ByteArrayOutputStream text = new ByteArrayOutputStream();
+	    JobControl.copy( input, text );
+	    return parse( text.toString( ENCODING ) );
+	} finally {
+	    input.close();
+	}
+    }
+
+    /**
+     * Removes the checkpoint, once everything has been sent.
+     */
+    public void delete() {
+	if ( isInS3() ) {
+	    s3.deleteObject( getBucket(), getKey() );
+	} else {
+	    new File( location ).delete();
+	}
+    }
+}
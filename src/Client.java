@@ -27,7 +27,9 @@ public class Client {
 
     public Worker makeWorker() throws IOException {
 	int numThreads = parameters.getNumThreads();
-	if ( numThreads == 1 ) {
+	if ( parameters.isPipelineMode() ) {
+	    return new PipelineWorker( parameters, numThreads );
+	} else if ( numThreads == 1 && !parameters.isAutoNumThreads() ) {
 	    return new SequentialWorker( parameters );
 	} else {
 	    return new SMPWorker( parameters, numThreads );
@@ -42,7 +44,12 @@ public class Client {
 
     public static void main( String[] args ) {
 	try {
-	    new Client().makeWorker().processFiles();
+	    Worker worker = new Client().makeWorker();
+	    try {
+		worker.processFiles();
+	    } finally {
+		worker.shutdown();
+	    }
 	} catch ( Exception e ) {
 	    e.printStackTrace();
 	    System.err.println( e );
@@ -0,0 +1,246 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Adjusts how many files an <code>SMPWorker</code> processes at once.
+ * Once a minute, this looks at how many files were finished, along with
+ * the load average, the fraction of memory that is free, and the
+ * fraction of CPU time spent waiting on IO.  If memory is running out or
+ * the disks are swamped, the number of threads is cut in half.
+ * Otherwise it hill climbs: it keeps stepping by one thread in the same
+ * direction as long as throughput doesn't get worse, and turns around
+ * when it does.  It won't add threads while the load average is already
+ * well beyond the number of cores.
+ * Every change is logged to stdout on a single line, for tuning offline.
+ */
+public class ConcurrencyController {
+    // begin constants
+    public static final int INTERVAL_SECONDS = 60;
+    public static final int MAX_THREADS_PER_CORE = 4;
+    // a change in throughput smaller than this is considered noise
+    public static final double THROUGHPUT_TOLERANCE = 0.05;
+    public static final double LOW_FREE_MEMORY = 0.1;
+    public static final double HIGH_IOWAIT = 0.3;
+    public static final double MAX_LOAD_PER_CORE = 2.0;
+    public static final String MEMINFO = "/proc/meminfo";
+    public static final String STAT = "/proc/stat";
+    // end constants
+
+    // begin instance variables
+    private final SMPWorker worker;
+    private final int numCores;
+    private final int minThreads;
+    private final int maxThreads;
+    private final ScheduledExecutorService scheduler;
+    private int numThreads;
+    // +1 if we were last adding threads, -1 if we were last removing them
+    private int direction;
+    private long lastNumFilesDone;
+    private double lastThroughput;
+    private long[] lastCpuTimes;
+    // end instance variables
+
+    public ConcurrencyController( SMPWorker worker,
+				  int numThreads ) {
+	this.worker = worker;
+	this.numThreads = numThreads;
+	numCores = Runtime.getRuntime().availableProcessors();
+	minThreads = 1;
+	maxThreads = Math.max( numThreads, numCores * MAX_THREADS_PER_CORE );
+	direction = 1;
+	lastNumFilesDone = 0;
+	lastThroughput = -1.0;
+	lastCpuTimes = readCpuTimes();
+	scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    public void start() {
+	scheduler.scheduleAtFixedRate( new Runnable() {
+		public void run() {
+		    try {
+			adjust();
+		    } catch ( Exception e ) {
+			// an exception here would cancel all future adjustments
+			e.printStackTrace();
+			System.err.println( e );
+		    }
+		}
+	    },
+	    INTERVAL_SECONDS,
+	    INTERVAL_SECONDS,
+	    TimeUnit.SECONDS );
+    }
+
+    public void shutdown() {
+	scheduler.shutdownNow();
+    }
+
+    public int getMaxThreads() {
+	return maxThreads;
+    }
+
+    /**
+     * Gets the one minute load average, or a negative number if it
+     * isn't available.
+     */
+    public static double loadAverage() {
+	return ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+    }
+
+    /**
+     * Reads the given field of /proc/meminfo, in kB.
+     * Returns -1 if it isn't there.
+     */
+    public static long readMemInfo( String field ) {
+	return readProcField( MEMINFO, field );
+    }
+
+    /**
+     * Reads the number in the given field of the given file under /proc,
+     * such as <code>VmRSS</code> of <code>/proc/[pid]/status</code>.
+     * Returns -1 if it isn't there.
+     */
+    public static long readProcField( String fileName,
+				      String field ) {
+	try {
+	    BufferedReader reader = new BufferedReader( new FileReader( fileName ) );
+	    try {
+		String line;
+		while ( ( line = reader.readLine() ) != null ) {
+		    if ( line.startsWith( field + ":" ) ) {
+			return Long.parseLong( line.split( "\\s+" )[ 1 ] );
+		    }
+		}
+	    } finally {
+		reader.close();
+	    }
+	} catch ( IOException e ) {
+	} catch ( NumberFormatException e ) {}
+	return -1;
+    }
+
+    /**
+     * Gets the fraction of memory that is available, or a negative
+     * number if we can't tell.
+     */
+    public static double freeMemory() {
+	long total = readMemInfo( "MemTotal" );
+	long available = readMemInfo( "MemAvailable" );
+	if ( available < 0 ) {
+	    // older kernels
+	    available = readMemInfo( "MemFree" );
+	}
+	return ( total > 0 && available >= 0 ) ? (double)available / total : -1.0;
+    }
+
+    /**
+     * Reads the aggregate CPU times from the first line of /proc/stat.
+     * Returns null if they aren't available.
+     */
+    public static long[] readCpuTimes() {
+	try {
+	    BufferedReader reader = new BufferedReader( new FileReader( STAT ) );
+	    try {
+		String[] fields = reader.readLine().trim().split( "\\s+" );
+		long[] retval = new long[ fields.length - 1 ];
+		for( int x = 1; x < fields.length; x++ ) {
+		    retval[ x - 1 ] = Long.parseLong( fields[ x ] );
+		}
+		return retval;
+	    } finally {
+		reader.close();
+	    }
+	} catch ( IOException e ) {
+	} catch ( NumberFormatException e ) {
+	} catch ( NullPointerException e ) {}
+	return null;
+    }
+
+    /**
+     * Gets the fraction of CPU time spent waiting on IO since the
+     * last call, or a negative number if we can't tell.
+     */
+    protected double iowait() {
+	long[] cpuTimes = readCpuTimes();
+	double retval = -1.0;
+	// iowait is the fifth field
+	if ( cpuTimes != null && lastCpuTimes != null &&
+	     cpuTimes.length > 4 && lastCpuTimes.length == cpuTimes.length ) {
+	    long total = 0;
+	    for( int x = 0; x < cpuTimes.length; x++ ) {
+		total += cpuTimes[ x ] - lastCpuTimes[ x ];
+	    }
+	    if ( total > 0 ) {
+		retval = (double)( cpuTimes[ 4 ] - lastCpuTimes[ 4 ] ) / total;
+	    }
+	}
+	lastCpuTimes = cpuTimes;
+	return retval;
+    }
+
+    /**
+     * Picks a new number of threads, given this interval's readings.
+     * Also picks the direction for next time.
+     */
+    protected int chooseNumThreads( double throughput,
+				    double load,
+				    double freeMemory,
+				    double iowait ) {
+	if ( ( freeMemory >= 0.0 && freeMemory < LOW_FREE_MEMORY ) ||
+	     iowait > HIGH_IOWAIT ) {
+	    direction = -1;
+	    return numThreads / 2;
+	} else if ( lastThroughput >= 0.0 &&
+		    throughput < lastThroughput * ( 1.0 - THROUGHPUT_TOLERANCE ) ) {
+	    // the last step made things worse
+	    direction = -direction;
+	} else if ( lastThroughput >= 0.0 &&
+		    throughput <= lastThroughput * ( 1.0 + THROUGHPUT_TOLERANCE ) ) {
+	    // no real difference; see if more threads help
+	    direction = 1;
+	}
+
+	if ( direction > 0 && load > numCores * MAX_LOAD_PER_CORE ) {
+	    return numThreads;
+	}
+	return numThreads + direction;
+    }
+
+    /**
+     * Takes this interval's readings and adjusts the number of threads.
+     */
+    protected void adjust() {
+	long numFilesDone = worker.getNumFilesDone();
+	double throughput = 
+	    ( numFilesDone - lastNumFilesDone ) * 60.0 / INTERVAL_SECONDS;
+	double load = loadAverage();
+	double free = freeMemory();
+	double wait = iowait();
+	lastNumFilesDone = numFilesDone;
+
+	if ( throughput == 0.0 && lastThroughput <= 0.0 ) {
+	    // nothing is finishing, so there is nothing to learn from
+	    lastThroughput = throughput;
+	    return;
+	}
+
+	int newNumThreads =
+	    Math.max( minThreads,
+		      Math.min( maxThreads,
+				chooseNumThreads( throughput, load, free, wait ) ) );
+	if ( newNumThreads != numThreads ) {
+	    System.out.println( "ConcurrencyController: time=" + System.currentTimeMillis() +
+				" threads=" + numThreads + "->" + newNumThreads +
+				" filesPerMinute=" + throughput +
+				" lastFilesPerMinute=" + lastThroughput +
+				" load=" + load +
+				" freeMemory=" + free +
+				" iowait=" + wait );
+	    numThreads = newNumThreads;
+	    worker.setTargetNumThreads( numThreads );
+	}
+	lastThroughput = throughput;
+    }
+}
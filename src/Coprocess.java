@@ -0,0 +1,168 @@
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * A copy of the analysis program that stays running across files, so
+ * that whatever it warms up (JIT, caches, loaded models) isn't thrown
+ * away after each one.
+ * The program is started without arguments, and is sent the name of
+ * each input file as a line on its stdin.  For each, it prints a line
+ * on its stdout with the name of the output file, or an empty line if
+ * there is none.  Its stderr goes to ours.
+ * The program is restarted if it quits, if it takes longer than
+ * <code>coprocessTimeout</code> or <code>maxTaskRuntime</code> on a
+ * file, or if it grows beyond <code>coprocessMaxMemory</code>.
+ * Only one thread may use a coprocess at a time.
+ */
+public class Coprocess {
+    // begin constants
+    public static final String CHARSET = "UTF-8";
+    public static final long BYTES_IN_KB = 1024;
+    // end constants
+
+    // begin instance variables
+    private final AWSParameters parameters;
+    private final ScheduledExecutorService watchdog;
+    private Process process;
+    private String pid;
+    private BufferedReader stdout;
+    private Writer stdin;
+    private volatile boolean killed;
+    // end instance variables
+
+    public Coprocess( AWSParameters parameters,
+		      ScheduledExecutorService watchdog ) {
+	this.parameters = parameters;
+	this.watchdog = watchdog;
+	process = null;
+	pid = null;
+	stdout = null;
+	stdin = null;
+	killed = false;
+    }
+
+    /**
+     * Starts the program.  The shell prints its process ID before
+     * replacing itself with the program, so that we know which process
+     * to check the memory of.
+     */
+    protected void start() throws IOException {
+	ProcessBuilder builder =
+	    new ProcessBuilder( parameters.inEnvironment( "echo $$; exec ./" +
+							  parameters.getAnalysisProgramName() ) );
+	builder.redirectError( ProcessBuilder.Redirect.INHERIT );
+	process = builder.start();
+	killed = false;
+	stdout =
+	    new BufferedReader( new InputStreamReader( process.getInputStream(),
+						       CHARSET ) );
+	stdin =
+	    new BufferedWriter( new OutputStreamWriter( process.getOutputStream(),
+							CHARSET ) );
+	pid = stdout.readLine();
+	if ( pid == null ) {
+	    stop();
+	    throw new IOException( "Could not start the analysis program" );
+	}
+    }
+
+    /**
+     * Kills the program, if it is running.  It is started again the
+     * next time it is needed.
+     */
+    public void stop() {
+	if ( process != null ) {
+	    killed = true;
+	    process.destroyForcibly();
+	    try {
+		stdin.close();
+	    } catch ( IOException e ) {}
+	    try {
+		stdout.close();
+	    } catch ( IOException e ) {}
+	    process = null;
+	}
+    }
+
+    /**
+     * Gets how much memory the program is using, in bytes, or -1 if
+     * we can't tell.
+     */
+    public long residentMemory() {
+	long kb = ConcurrencyController.readProcField( "/proc/" + pid + "/status",
+							"VmRSS" );
+	return ( kb < 0 ) ? -1 : kb * BYTES_IN_KB;
+    }
+
+    /**
+     * Analyzes the file with the given name, starting the program
+     * first if need be.
+     * Returns what the program said its output file was.
+     * @throws IOException If the program quit or hung, in which case
+     * it will be started again for the next file
+     * @throws AnalysisException If it hung for as long as the maximum
+     * task runtime, in which case the file shouldn't be tried again
+     */
+    public String analyze( String fileName ) throws IOException {
+	if ( process != null && !process.isAlive() ) {
+	    // quit between files, so don't hold it against this one
+	    stop();
+	}
+	if ( process == null ) {
+	    start();
+	}
+
+	final Process current = process;
+	int timeout = parameters.getEffectiveCoprocessTimeout();
+	ScheduledFuture< ? > kill = null;
+	if ( timeout > 0 ) {
+	    kill = watchdog.schedule( new Runnable() {
+		    public void run() {
+			killed = true;
+			current.destroyForcibly();
+		    }
+		},
+		timeout,
+		TimeUnit.SECONDS );
+	}
+
+	String retval = null;
+	try {
+	    stdin.write( fileName + "\n" );
+	    stdin.flush();
+	    retval = stdout.readLine();
+	} catch ( IOException e ) {
+	    // the program is gone; noticed below
+	} finally {
+	    if ( kill != null ) {
+		kill.cancel( false );
+	    }
+	}
+
+	if ( retval == null ) {
+	    boolean hung = killed;
+	    stop();
+	    if ( hung && timeout == parameters.getMaxTaskRuntime() ) {
+		throw new AnalysisException( "The analysis program ran for more than " +
+					     timeout + " seconds on " + fileName,
+					     null,
+					     true );
+	    }
+	    throw new IOException( "The analysis program " +
+				   ( hung ? "hung" : "quit" ) +
+				   " while analyzing " + fileName );
+	} else if ( killed ) {
+	    // answered just as time ran out
+	    stop();
+	    return retval;
+	}
+
+	long maxMemory = parameters.getCoprocessMaxMemory();
+	if ( maxMemory > 0 && residentMemory() > maxMemory ) {
+	    System.err.println( "Restarting the analysis program, which is using " +
+				residentMemory() + " bytes" );
+	    stop();
+	}
+	return retval;
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The coprocesses of a worker, shared among its analysis threads.
+ * A thread borrows a coprocess for each file, so there are never more
+ * of them than threads analyzing at once.  The most recently used one
+ * is handed out first, since it is the warmest.
+ */
+public class CoprocessPool {
+    // begin instance variables
+    private final AWSParameters parameters;
+    private final ScheduledExecutorService watchdog;
+    private final LinkedList< Coprocess > idle;
+    private final List< Coprocess > all;
+    // end instance variables
+
+    public CoprocessPool( AWSParameters parameters ) {
+	this.parameters = parameters;
+	watchdog = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+		public Thread newThread( Runnable runnable ) {
+		    Thread retval = new Thread( runnable );
+		    retval.setDaemon( true );
+		    return retval;
+		}
+	    } );
+	idle = new LinkedList< Coprocess >();
+	all = new ArrayList< Coprocess >();
+    }
+
+    protected synchronized Coprocess borrow() {
+	if ( idle.isEmpty() ) {
+	    Coprocess retval = new Coprocess( parameters, watchdog );
+	    all.add( retval );
+	    return retval;
+	}
+	return idle.removeFirst();
+    }
+
+    protected synchronized void giveBack( Coprocess coprocess ) {
+	idle.addFirst( coprocess );
+    }
+
+    /**
+     * Analyzes the file with the given name with one of the
+     * coprocesses.
+     * Returns what the program said its output file was.
+     */
+    public String analyze( String fileName ) throws IOException {
+	Coprocess coprocess = borrow();
+	try {
+	    return coprocess.analyze( fileName );
+	} finally {
+	    giveBack( coprocess );
+	}
+    }
+
+    /**
+     * Stops all the coprocesses.
+     */
+    public synchronized void shutdown() {
+	for( Coprocess coprocess : all ) {
+	    coprocess.stop();
+	}
+	watchdog.shutdownNow();
+    }
+}
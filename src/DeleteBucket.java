@@ -23,13 +23,6 @@ import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 public class DeleteBucket {
-    public static List< String > keys = new LinkedList< String >();
-    public static void getObjects( ObjectListing listing ) throws IOException {
-	for( S3ObjectSummary summary : listing.getObjectSummaries() ) {
-	    keys.add( summary.getKey() );
-	}
-    }
-
     public static void main( String[] args ) {
 	if ( args.length != 1 ) {
 	    System.err.println( "Needs the name of a bucket to delete." );
@@ -38,16 +31,9 @@ public class DeleteBucket {
 
 	try {
 	    AmazonS3 s3 = CredentialParameters.makeParameters().getS3();
-	    ObjectListing listing = 
-		s3.listObjects( new ListObjectsRequest().withBucketName( args[ 0 ] ) );
-	    
-	    do {
-		getObjects( listing );
-		listing = s3.listNextBatchOfObjects( listing );
-	    } while( listing.isTruncated() );
-	    getObjects( listing );
-	    for( String key : keys ) {
-		s3.deleteObject( args[ 0 ], key );
+	    // deleting what has been listed doesn't disturb the rest
+	    for( S3ObjectSummary summary : new ParallelListing( s3, args[ 0 ] ) ) {
+		s3.deleteObject( args[ 0 ], summary.getKey() );
 	    }
 	    s3.deleteBucket( args[ 0 ] );
 	} catch ( Exception e ) {
@@ -46,13 +46,15 @@ public class Download {
 				       String prefix,
 				       String dir ) 
 	throws IOException {
-	for( String key : ListBucket.listBucket( s3, 
-						 bucket, 
-						 prefix ) ) {
+	for( S3ObjectSummary summary : new ParallelListing( s3,
+							     bucket,
+							     prefix,
+							     ParallelListing.DEFAULT_THREADS,
+							     false ) ) {
 	    download( s3,
 		      bucket,
-		      key,
-		      new File( dir, key ) );
+		      summary.getKey(),
+		      new File( dir, summary.getKey() ) );
 	}
     }
 
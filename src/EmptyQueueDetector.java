@@ -0,0 +1,49 @@
+/**
+ * Decides when a worker thread has really run out of files.
+ * A single empty receive doesn't mean much, since SQS is distributed
+ * and a receive can come back empty while there are still messages.
+ * Here we need several empty receives in a row, and then SQS must
+ * also report that nothing is waiting and nothing is in flight.
+ * Messages in flight could always come back if whoever has them dies.
+ * Receives are counted by the message buffer the threads share, so
+ * an empty receive counts once however many threads were waiting on
+ * it.
+ */
+public class EmptyQueueDetector {
+    // begin constants
+    // how long to back off between checks when receives return immediately
+    public static final int BACKOFF_MILLISECONDS = 1000;
+    // end constants
+
+    // begin instance variables
+    private final AWSParameters parameters;
+    private final MessageBuffer buffer;
+    // end instance variables
+
+    public EmptyQueueDetector( AWSParameters parameters,
+			       MessageBuffer buffer ) {
+	this.parameters = parameters;
+	this.buffer = buffer;
+    }
+
+    /**
+     * To be called whenever the buffer gives us nothing.
+     * Returns true if the queue is drained, meaning that the thread
+     * should stop.
+     */
+    public boolean gotNothing() {
+	if ( buffer.getNumEmptyFills() < parameters.getEmptyReceivesBeforeExit() ) {
+	    return false;
+	} else if ( parameters.isQueueDrained() ) {
+	    return true;
+	} else {
+	    if ( parameters.getReceiveWaitTime() == 0 ) {
+		// without long polling we'd otherwise hammer SQS
+		try {
+		    Thread.sleep( BACKOFF_MILLISECONDS );
+		} catch ( InterruptedException e ) {}
+	    }
+	    return false;
+	}
+    }
+}
@@ -29,13 +29,9 @@ public class FirstAndLastInBucket {
 					   String prefix ) 
 	throws IOException {
 	List< Date > retval = new ArrayList< Date >();
-	ObjectListing listing = s3.listObjects( bucketName, 
-						prefix );
-	do {
-	    retval.addAll( listObjects( listing ) );
-	    listing = s3.listNextBatchOfObjects( listing );
-	} while( listing.isTruncated() );
-	retval.addAll( listObjects( listing ) );
+	for( S3ObjectSummary summary : ListBucket.listSummaries( s3, bucketName, prefix ) ) {
+	    retval.add( summary.getLastModified() );
+	}
 	return retval;
     }
 
@@ -55,13 +51,22 @@ public class FirstAndLastInBucket {
 
 	try {
 	    AmazonS3 s3 = CredentialParameters.makeParameters().getS3();
-	    List< Date > lastModified = listBucket( s3, args[ 0 ] );
-	    Collections.sort( lastModified );
-	    if ( lastModified.size() == 0 ) {
+	    Date first = null;
+	    Date last = null;
+	    for( S3ObjectSummary summary : new ParallelListing( s3, args[ 0 ] ) ) {
+		Date lastModified = summary.getLastModified();
+		if ( first == null || lastModified.before( first ) ) {
+		    first = lastModified;
+		}
+		if ( last == null || lastModified.after( last ) ) {
+		    last = lastModified;
+		}
+	    }
+	    if ( first == null ) {
 		System.out.println( "Bucket is empty" );
 	    } else {
-		System.out.println( "Start output: " + lastModified.get( 0 ) );
-		System.out.println( "End output: " + lastModified.get( lastModified.size() - 1 ) );
+		System.out.println( "Start output: " + first );
+		System.out.println( "End output: " + last );
 	    }
 	} catch ( Exception e ) {
 	    e.printStackTrace();
@@ -0,0 +1,231 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A local cache of input files, so that files that are processed again
+ * (because a message was redelivered, or because of a rerun with a new
+ * analysis program) don't have to be downloaded again.
+ * Entries are keyed by bucket, key, and ETag, so a changed object is
+ * never served stale.  When the cache grows beyond its capacity, the
+ * least recently used entries are evicted.  Entries are copied into
+ * place, so that the analysis program is free to change its input.
+ * Safe for use by multiple threads.
+ */
+public class InputCache {
+    // begin constants
+    public static final String TEMP_SUFFIX = ".tmp";
+    // end constants
+
+    // begin instance variables
+    private final AWSParameters parameters;
+    private final File dir;
+    private final long capacity;
+    // cache names to sizes, in least recently used order
+    private final LinkedHashMap< String, Long > entries;
+    // cache names to how many threads are currently using them
+    private final Map< String, Integer > pinned;
+    private long size;
+    private long numHits;
+    private long numMisses;
+    // end instance variables
+
+    public InputCache( AWSParameters parameters,
+		       File dir,
+		       long capacity ) {
+	this.parameters = parameters;
+	this.dir = dir;
+	this.capacity = capacity;
+	entries = new LinkedHashMap< String, Long >( 16, 0.75f, true );
+	pinned = new HashMap< String, Integer >();
+	size = 0;
+	numHits = 0;
+	numMisses = 0;
+	dir.mkdirs();
+	loadExisting();
+    }
+
+    /**
+     * Picks up entries left by a previous run, oldest first.
+     */
+    protected synchronized void loadExisting() {
+	File[] files = dir.listFiles();
+	if ( files == null ) {
+	    return;
+	}
+	Arrays.sort( files, new Comparator< File >() {
+		public int compare( File first, File second ) {
+		    return Long.valueOf( first.lastModified() )
+			.compareTo( Long.valueOf( second.lastModified() ) );
+		}
+	    } );
+	for( File file : files ) {
+	    if ( file.getName().contains( TEMP_SUFFIX ) ) {
+		// left over from a download that never finished
+		file.delete();
+	    } else {
+		entries.put( file.getName(), Long.valueOf( file.length() ) );
+		size += file.length();
+	    }
+	}
+	evict();
+    }
+
+    /**
+     * Gets the name of the cache entry for the given object.
+     */
+    public static String cacheName( String bucket,
+				    String key,
+				    String eTag ) {
+	return hexDigest( "SHA-1",
+			  bucket + "\n" + key + "\n" + eTag );
+    }
+
+    /**
+     * Hashes the given text with the given algorithm, as hex.
+     */
+    public static String hexDigest( String algorithm,
+				    String text ) {
+	try {
+	    MessageDigest digest = MessageDigest.getInstance( algorithm );
+	    byte[] hash = digest.digest( text.getBytes( "UTF-8" ) );
+	    StringBuilder retval = new StringBuilder();
+	    for( byte current : hash ) {
+		retval.append( String.format( "%02x", current & 0xff ) );
+	    }
+	    return retval.toString();
+	} catch ( NoSuchAlgorithmException e ) {
+	    // every JVM has SHA-1 and SHA-256
+	    throw new RuntimeException( e );
+	} catch ( UnsupportedEncodingException e ) {
+	    // every JVM has UTF-8
+	    throw new RuntimeException( e );
+	}
+    }
+
+    protected synchronized void pin( String name ) {
+	Integer count = pinned.get( name );
+	pinned.put( name, Integer.valueOf( ( count == null ) ? 1 : count.intValue() + 1 ) );
+    }
+
+    protected synchronized void unpin( String name ) {
+	int count = pinned.get( name ).intValue() - 1;
+	if ( count == 0 ) {
+	    pinned.remove( name );
+	} else {
+	    pinned.put( name, Integer.valueOf( count ) );
+	}
+	evict();
+    }
+
+    /**
+     * Evicts least recently used entries that aren't in use until we
+     * are within capacity.
+     */
+    protected synchronized void evict() {
+	Iterator< Map.Entry< String, Long > > iterator = entries.entrySet().iterator();
+	while ( size > capacity && iterator.hasNext() ) {
+	    Map.Entry< String, Long > entry = iterator.next();
+	    if ( !pinned.containsKey( entry.getKey() ) ) {
+		new File( dir, entry.getKey() ).delete();
+		size -= entry.getValue().longValue();
+		iterator.remove();
+	    }
+	}
+    }
+
+    /**
+     * If the given entry exists, pins it and counts a hit.
+     * Otherwise counts a miss.
+     */
+    protected synchronized boolean lookup( String name ) {
+	if ( entries.get( name ) != null ) { // get() marks it as used
+	    numHits++;
+	    pin( name );
+	    return true;
+	} else {
+	    numMisses++;
+	    return false;
+	}
+    }
+
+    /**
+     * Adds the given downloaded file as the given entry, pinning it.
+     */
+    protected synchronized void add( String name, File downloaded ) throws IOException {
+	File entry = new File( dir, name );
+	if ( entries.containsKey( name ) ) {
+	    // another thread got here first
+	    downloaded.delete();
+	    entries.get( name );
+	} else {
+	    if ( !downloaded.renameTo( entry ) ) {
+		downloaded.delete();
+		throw new IOException( "Could not add " + name + " to input cache" );
+	    }
+	    entries.put( name, Long.valueOf( entry.length() ) );
+	    size += entry.length();
+	}
+	pin( name );
+	evict();
+    }
+
+    /**
+     * Puts the given cache entry at the given location.
+     */
+    protected void copyOut( String name, File localFile ) throws IOException {
+	Path entry = new File( dir, name ).toPath();
+	Path destination = localFile.toPath();
+	Files.copy( entry, destination, StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    /**
+     * Gets the given object into the given local file, downloading
+     * it into the cache first if needed.
+     */
+    public void getObject( String bucket,
+			   String key,
+			   String eTag,
+			   long objectSize,
+			   File localFile ) throws IOException {
+	String name = cacheName( bucket, key, eTag );
+	if ( !lookup( name ) ) {
+	    File downloaded = 
+		File.createTempFile( name, TEMP_SUFFIX, dir );
+	    try {
+		parameters.downloadObject( bucket, key, eTag, objectSize, downloaded );
+	    } catch ( IOException e ) {
+		downloaded.delete();
+		throw e;
+	    } catch ( RuntimeException e ) {
+		downloaded.delete();
+		throw e;
+	    }
+	    add( name, downloaded );
+	}
+
+	try {
+	    copyOut( name, localFile );
+	} finally {
+	    unpin( name );
+	}
+    }
+
+    public synchronized long getNumHits() {
+	return numHits;
+    }
+
+    public synchronized long getNumMisses() {
+	return numMisses;
+    }
+
+    public synchronized String toString() {
+	long total = numHits + numMisses;
+	double hitRate = ( total == 0 ) ? 0.0 : (double)numHits / total;
+	return "InputCache: hits=" + numHits +
+	    " misses=" + numMisses +
+	    " hitRate=" + hitRate +
+	    " bytes=" + size;
+    }
+}
@@ -1,4 +1,6 @@
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Contains various helper routines for running processes
@@ -6,26 +8,370 @@ import java.io.*;
  * @author Kyle Dewey
  */
 public class JobControl {
+    // begin constants
+    // how much of a program's output is kept
+    public static final int STDOUT_CAPTURE = 1024 * 1024;
+    public static final int STDERR_CAPTURE = 1024 * 64;
+    // how long to wait for output still in the pipes once a program exits
+    public static final long DRAIN_MILLISECONDS = 1000 * 10;
+    // end constants
+
+    /**
+     * Copies a stream to a program's stdin from a separate thread.
+     * The program not reading all of it is fine, but failing to read
+     * the stream isn't: the program would take what it got for the
+     * whole input.  So in that case the program is killed, and the
+     * failure is kept for whoever ran it.
+     */
+    public static class Feeder implements Runnable {
+	// begin instance variables
+	private final Process process;
+	private final InputStream input;
+	private volatile IOException readError;
+	// end instance variables
+
+	public Feeder( Process process,
+		       InputStream input ) {
+	    this.process = process;
+	    this.input = input;
+	    readError = null;
+	}
+
+	public void run() {
+	    OutputStream output = process.getOutputStream();
+	    byte[] buffer = new byte[ 1024 * 64 ];
+	    try {
+		while ( true ) {
+		    int numRead;
+		    try {
+			numRead = input.read( buffer );
+		    } catch ( IOException e ) {
+			failedToRead( e );
+			return;
+		    } catch ( RuntimeException e ) {
+			failedToRead( new IOException( e ) );
+			return;
+		    }
+		    if ( numRead == -1 ) {
+			return;
+		    }
+		    try {
+			output.write( buffer, 0, numRead );
+		    } catch ( IOException e ) {
+			// the program stopped reading
+			return;
+		    }
+		}
+	    } finally {
+		try {
+		    output.close();
+		} catch ( IOException e ) {}
+	    }
+	}
+
+	protected void failedToRead( IOException e ) {
+	    readError = e;
+	    process.destroyForcibly();
+	}
+
+	/**
+	 * Throws if the input couldn't be read.
+	 */
+	public void check() throws IOException {
+	    if ( readError != null ) {
+		throw new IOException( "Could not read the program's input",
+				       readError );
+	    }
+	}
+    }
+
+    /**
+     * Kills a program, along with everything it started, if it runs
+     * for longer than a given number of seconds.
+     * Watches from a separate thread, for programs whose output is
+     * read as they run.
+     */
+    public static class Watchdog implements Runnable {
+	// begin instance variables
+	private final Process process;
+	private final String processGroup;
+	private final int timeout;
+	private volatile boolean timedOut;
+	// end instance variables
+
+	/**
+	 * The process group can be null if the program isn't the leader
+	 * of its own.
+	 */
+	public Watchdog( Process process,
+			 String processGroup,
+			 int timeout ) {
+	    this.process = process;
+	    this.processGroup = processGroup;
+	    this.timeout = timeout;
+	    timedOut = false;
+	}
+
+	public void run() {
+	    try {
+		if ( !process.waitFor( timeout, TimeUnit.SECONDS ) ) {
+		    timedOut = true;
+		    if ( processGroup != null ) {
+			killProcessGroup( processGroup );
+		    }
+		    process.destroyForcibly();
+		}
+	    } catch ( InterruptedException e ) {}
+	}
+
+	/**
+	 * Whether or not the program was killed for running too long.
+	 */
+	public boolean isTimedOut() {
+	    return timedOut;
+	}
+
+	/**
+	 * Starts watching the given program, which has been running
+	 * since just now.
+	 */
+	public static Watchdog watch( Process process,
+				      String processGroup,
+				      int timeout ) {
+	    Watchdog retval = new Watchdog( process, processGroup, timeout );
+	    Thread thread = new Thread( retval );
+	    thread.setDaemon( true );
+	    thread.start();
+	    return retval;
+	}
+    }
+
     /**
      * Returns the output of the program in a single string.
      */
     public static String executeProgram( String[] args ) 
 	throws IOException {
-	String retval = "";
-	String line;
-	Process process = 
-	    Runtime.getRuntime().exec( args );
-	InputStream inputStream = process.getInputStream();
-	BufferedReader reader =
-	    new BufferedReader( new InputStreamReader( inputStream ) );
-	while ( ( line = reader.readLine() ) != null ) {
-	    retval += line;
-	}
-	reader.close();
-	inputStream.close();
+	return executeProgram( args, null );
+    }
+
+    /**
+     * Returns the output of the program in a single string.
+     * The given stream is fed to the program's stdin from a separate
+     * thread.  If the program exits without reading all of it, the
+     * rest is ignored.
+     */
+    public static String executeProgram( String[] args,
+					 InputStream stdin ) 
+	throws IOException {
+	return joinLines( run( args, stdin, 0 ).getStdout() );
+    }
+
+    /**
+     * Runs the given program to completion.  If the given stream isn't
+     * null, it is fed to the program's stdin from a separate thread.
+     * Stdout and stderr are read as the program runs, so it never
+     * blocks on a full pipe, but only their ends are kept.
+     * If the given timeout (in seconds) is positive and the program
+     * runs for longer, it is killed along with everything it started.
+     * If the given stream can't be read, the program is killed and
+     * this throws.
+     */
+    public static ProcessResult run( String[] args,
+				     InputStream stdin,
+				     int timeout ) throws IOException {
+	if ( timeout > 0 ) {
+	    args = inOwnProcessGroup( args );
+	}
+	Process process = new ProcessBuilder( args ).start();
+	Feeder feeder = feed( process, stdin );
+	String processGroup = null;
+	if ( timeout > 0 ) {
+	    processGroup = readLine( process.getInputStream() );
+	}
+	TailBuffer stdout = new TailBuffer( STDOUT_CAPTURE );
+	TailBuffer stderr = new TailBuffer( STDERR_CAPTURE );
+	Thread stdoutDrainer = drain( process.getInputStream(), stdout );
+	Thread stderrDrainer = drain( process.getErrorStream(), stderr );
+	boolean timedOut = false;
+	try {
+	    if ( timeout > 0 &&
+		 !process.waitFor( timeout, TimeUnit.SECONDS ) ) {
+		timedOut = true;
+		if ( processGroup != null ) {
+		    killProcessGroup( processGroup );
+		}
+		process.destroyForcibly();
+	    }
+	    process.waitFor();
+	    stdoutDrainer.join( DRAIN_MILLISECONDS );
+	    stderrDrainer.join( DRAIN_MILLISECONDS );
+	} catch ( InterruptedException e ) {
+	    if ( processGroup != null ) {
+		killProcessGroup( processGroup );
+	    }
+	    process.destroyForcibly();
+	    throw new InterruptedIOException( "Interrupted while running " + args[ 0 ] );
+	} finally {
+	    finishProgram( process );
+	}
+	if ( feeder != null ) {
+	    feeder.check();
+	}
+	return new ProcessResult( process.exitValue(),
+				  stdout,
+				  stderr,
+				  timedOut );
+    }
+
+    /**
+     * Makes a command that runs the given command as the leader of
+     * its own process group, so that everything it starts can be
+     * killed together.  The first line of its output is the ID of the
+     * process group.
+     */
+    public static String[] inOwnProcessGroup( String[] args ) {
+	String[] retval = new String[ args.length + 4 ];
+	retval[ 0 ] = "setsid";
+	retval[ 1 ] = "sh";
+	retval[ 2 ] = "-c";
+	retval[ 3 ] = "echo $$; exec \"$0\" \"$@\"";
+	System.arraycopy( args, 0, retval, 4, args.length );
+	return retval;
+    }
+
+    /**
+     * Kills every process in the process group with the given ID.
+     */
+    public static void killProcessGroup( String processGroup ) {
+	try {
+	    executeProgram( new String[]{ "kill",
+					  "-KILL",
+					  "--",
+					  "-" + processGroup } );
+	} catch ( IOException e ) {
+	    e.printStackTrace();
+	    System.err.println( e );
+	}
+    }
+
+    /**
+     * Reads a single line from the given stream, without reading
+     * any further.
+     * Returns null if the stream ended first.
+     */
+    public static String readLine( InputStream input ) throws IOException {
+	StringBuilder retval = new StringBuilder();
+	int current;
+	while ( ( current = input.read() ) != '\n' ) {
+	    if ( current == -1 ) {
+		return null;
+	    }
+	    retval.append( (char)current );
+	}
+	return retval.toString();
+    }
+
+    /**
+     * Starts a thread that copies everything from the given input to
+     * the given output.
+     */
+    public static Thread drain( final InputStream input,
+				final OutputStream output ) {
+	Thread retval = new Thread( new Runnable() {
+		public void run() {
+		    try {
+			copy( input, output );
+		    } catch ( IOException e ) {
+			// the stream was closed on us
+		    }
+		}
+	    } );
+	retval.setDaemon( true );
+	retval.start();
+	return retval;
+    }
+
+    /**
+     * Removes the line breaks from the given output.
+     */
+    public static String joinLines( String output ) {
+	return output.replaceAll( "\r\n|\r|\n", "" );
+    }
+
+    /**
+     * Splits the given output into lines.
+     */
+    public static List< String > splitLines( String output ) {
+	List< String > retval = new ArrayList< String >();
+	try {
+	    BufferedReader reader = new BufferedReader( new StringReader( output ) );
+	    String line;
+	    while ( ( line = reader.readLine() ) != null ) {
+		retval.add( line );
+	    }
+	} catch ( IOException e ) {
+	    // impossible
+	    throw new RuntimeException( e );
+	}
+	return retval;
+    }
+
+    /**
+     * Starts the given program, leaving its stdin and stdout for the
+     * caller.  The end of the program's stderr is kept in the given
+     * buffer, as <code>run</code> does.
+     * Its stdin should be handed to <code>feed</code>, and once stdout
+     * has been read, <code>finishProgram</code> should be called.
+     * Returns the program along with what is draining its stderr.
+     */
+    public static Pair< Process, Thread > startProgram( String[] args,
+							 TailBuffer stderr )
+	throws IOException {
+	Process process = new ProcessBuilder( args ).start();
+	return new Pair< Process, Thread >( process,
+					    drain( process.getErrorStream(), stderr ) );
+    }
+
+    /**
+     * Feeds the given stream to the given process's stdin from a
+     * separate thread, or closes its stdin if the stream is null.
+     * Returns what is feeding it, or null if nothing is.
+     */
+    public static Feeder feed( Process process,
+			       InputStream stdin ) throws IOException {
+	if ( stdin == null ) {
+	    process.getOutputStream().close();
+	    return null;
+	}
+	Feeder retval = new Feeder( process, stdin );
+	Thread thread = new Thread( retval );
+	thread.setDaemon( true );
+	thread.start();
+	return retval;
+    }
+
+    /**
+     * Cleans up after a program from <code>startProgram</code> or
+     * <code>run</code>.
+     */
+    public static void finishProgram( Process process ) 
+	throws IOException {
+	process.getInputStream().close();
+	// makes the feeder stop if the program quit without reading everything
 	process.getOutputStream().close();
 	process.getErrorStream().close();
-	return retval;
+    }
+
+    /**
+     * Copies everything from the given input to the given output.
+     */
+    public static void copy( InputStream input,
+			     OutputStream output ) throws IOException {
+	byte[] buffer = new byte[ 1024 * 64 ];
+	int numRead;
+	while ( ( numRead = input.read( buffer ) ) != -1 ) {
+	    output.write( buffer, 0, numRead );
+	}
     }
 
     /**
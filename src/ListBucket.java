@@ -1,18 +1,18 @@
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.util.*;
+import java.util.stream.*;
 
 import com.amazonaws.*;
 import com.amazonaws.auth.*;
 import com.amazonaws.services.s3.*;
 import com.amazonaws.services.s3.model.*;
 
+/**
+ * Lists the keys in a bucket.
+ * <code>listBucket</code> gets them all at once.  The other listings
+ * are lazy: the first keys can be used right away, and only a couple of
+ * pages are held at a time, no matter how big the bucket is.
+ */
 public class ListBucket {
     public static List< String > listObjects( ObjectListing listing ) 
 	throws IOException {
@@ -28,16 +28,87 @@ public class ListBucket {
 					     String prefix ) 
 	throws IOException {
 	List< String > retval = new ArrayList< String >();
-	ObjectListing listing = s3.listObjects( bucketName, 
-						prefix );
-	do {
-	    retval.addAll( listObjects( listing ) );
-	    listing = s3.listNextBatchOfObjects( listing );
-	} while( listing.isTruncated() );
-	retval.addAll( listObjects( listing ) );
+	for( String key : listKeys( s3, bucketName, prefix ) ) {
+	    retval.add( key );
+	}
 	return retval;
     }
 
+    /**
+     * Like <code>listBucket</code>, but lists the keys lazily.
+     */
+    public static Iterable< String > listKeys( final AmazonS3 s3,
+					       final String bucketName,
+					       final String prefix ) {
+	return new Iterable< String >() {
+	    public Iterator< String > iterator() {
+		final Iterator< S3ObjectSummary > summaries =
+		    new ObjectListingIterator( s3, bucketName, prefix );
+		return new Iterator< String >() {
+		    public boolean hasNext() {
+			return summaries.hasNext();
+		    }
+
+		    public String next() {
+			return summaries.next().getKey();
+		    }
+
+		    public void remove() {
+			throw new UnsupportedOperationException();
+		    }
+		};
+	    }
+	};
+    }
+
+    /**
+     * Like <code>listKeys</code>, but keeps the size and such of each
+     * object along with its name.
+     */
+    public static Iterable< S3ObjectSummary > listSummaries( final AmazonS3 s3,
+							     final String bucketName,
+							     final String prefix ) {
+	return new Iterable< S3ObjectSummary >() {
+	    public Iterator< S3ObjectSummary > iterator() {
+		return new ObjectListingIterator( s3, bucketName, prefix );
+	    }
+	};
+    }
+
+    public static Iterable< S3ObjectSummary > listSummaries( AmazonS3 s3,
+							     String bucketName ) {
+	return listSummaries( s3, bucketName, "" );
+    }
+
+    /**
+     * Makes a stream of the objects in the given listing, which is
+     * listed lazily as the stream is used.  A parallel stream hands
+     * out objects to its threads in batches as they are listed.
+     */
+    public static Stream< S3ObjectSummary > stream( Iterable< S3ObjectSummary > listing,
+						    boolean parallel ) {
+	return StreamSupport.stream( Spliterators.spliteratorUnknownSize( listing.iterator(),
+									  Spliterator.NONNULL ),
+				     parallel );
+    }
+
+    /**
+     * Makes a stream of the objects in the given bucket with the given
+     * prefix, in key order.
+     */
+    public static Stream< S3ObjectSummary > stream( AmazonS3 s3,
+						    String bucketName,
+						    String prefix,
+						    boolean parallel ) {
+	return StreamSupport.stream( Spliterators.spliteratorUnknownSize( new ObjectListingIterator( s3, 
+												    bucketName,
+												    prefix ),
+									  Spliterator.ORDERED |
+									  Spliterator.DISTINCT |
+									  Spliterator.NONNULL ),
+				     parallel );
+    }
+
     public static List< String > listBucket( AmazonS3 s3,
 					     String bucketName )
 	throws IOException {
@@ -54,7 +125,7 @@ public class ListBucket {
 
 	try {
 	    AmazonS3 s3 = CredentialParameters.makeParameters().getS3();
-	    for( String current : listBucket( s3, args[ 0 ] ) ) {
+	    for( String current : listKeys( s3, args[ 0 ], "" ) ) {
 		System.out.println( current );
 	    }
 	} catch ( Exception e ) {
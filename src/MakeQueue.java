@@ -8,6 +8,16 @@ import java.io.*;
 
 /**
  * Makes an SQS queue, if it does not already exist.
+ * If the <code>maxReceiveCount</code> or <code>maxTaskRuntime</code>
+ * parameter is set, this also makes its dead-letter queue.  If
+ * <code>maxReceiveCount</code> is set, it also has SQS move messages
+ * there that were received once more than that without being deleted.
+ * Workers move files there themselves before then, so that they can
+ * say why.
+ * If the <code>queueShards</code> parameter is more than one, this
+ * makes that many queues: the one with the given name, and others named
+ * after it with <code>AWSParameters.SHARD_SUFFIX</code> and a number.
+ * They all share a single dead-letter queue.
  * @author Kyle Dewey
  */
 public class MakeQueue {
@@ -40,11 +50,63 @@ public class MakeQueue {
     /**
      * Creates a queue with the given object.
      * If the queue already exists, it gets the URL of the existing queue.
+     * If the queue is sharded, all the shards are made, and this gets
+     * the URL of the first.
      */
     public String makeQueue( String queueName ) throws IOException {
+	return makeShards( queueName ).get( 0 );
+    }
+
+    /**
+     * Creates all the shards of the queue with the given name, along
+     * with their dead-letter queue if there is one.
+     * Gets the URLs of the shards, in order.
+     */
+    public List< String > makeShards( String queueName ) throws IOException {
+	List< String > retval = new ArrayList< String >();
+	for( int x = 0; x < params.getQueueShards(); x++ ) {
+	    retval.add( makeQueueRaw( AWSParameters.shardOf( queueName, x ) ) );
+	}
+	if ( params.hasDeadLetterQueue() ) {
+	    String deadLetterQueueURL = 
+		makeQueueRaw( queueName + AWSParameters.DEAD_LETTER_QUEUE_SUFFIX );
+	    if ( params.getMaxReceiveCount() > 0 ) {
+		for( String queueURL : retval ) {
+		    attachDeadLetterQueue( queueURL, deadLetterQueueURL );
+		}
+	    }
+	}
+	return retval;
+    }
+
+    /**
+     * Creates a queue with the given name, without its dead-letter queue.
+     */
+    protected String makeQueueRaw( String queueName ) {
 	return params.getSQS().createQueue( makeQueueRequest( queueName ) ).getQueueUrl();
     }
 
+    /**
+     * Has SQS move messages from the queue with the first URL to the
+     * queue with the second URL once they have been received too many
+     * times.
+     */
+    public void attachDeadLetterQueue( String queueURL,
+				       String deadLetterQueueURL ) {
+	String arn =
+	    params.getSQS().getQueueAttributes( new GetQueueAttributesRequest( deadLetterQueueURL )
+						.withAttributeNames( AWSParameters.QUEUE_ARN ) )
+	    .getAttributes().get( AWSParameters.QUEUE_ARN );
+	// one more than the workers allow, so they get to it first
+	String policy =
+	    "{\"maxReceiveCount\":\"" + ( params.getMaxReceiveCount() + 1 ) + "\"," +
+	    "\"deadLetterTargetArn\":\"" + arn + "\"}";
+	Map< String, String > attrib = new HashMap< String, String >();
+	attrib.put( AWSParameters.REDRIVE_POLICY, policy );
+	params.getSQS().setQueueAttributes( new SetQueueAttributesRequest( queueURL,
+									   attrib ) );
+    }
+
     public static void main( String[] args ) {
 	if ( args.length != 1 ) {
 	    System.err.println( "Usage: java MakeQueue queue_name" );
@@ -0,0 +1,231 @@
+import com.amazonaws.services.sqs.model.*;
+
+import java.util.*;
+
+/**
+ * A bounded local buffer of messages received from SQS.
+ * All the threads of a worker draw from the same buffer, which is
+ * refilled with a single receive of up to
+ * <code>AWSParameters.MAX_NUMBER_MESSAGES</code> whenever it runs dry.
+ * Only one thread receives at a time, and it does so without holding
+ * the buffer, so that other threads can still take what is buffered.
+ * Threads that find the buffer empty while a receive is under way
+ * wait for it instead of making their own.  If it comes back empty,
+ * they all get nothing, so a single long poll counts for all of them.
+ * SQS starts the visibility timeout of a message as soon as it is
+ * received, so messages are handed to the heartbeat along with when
+ * they were received.  If one sat in the buffer for a while, the
+ * heartbeat extends it right away.
+ * If the queue is split into shards, each receive goes to the first
+ * shard that <code>ShardSelector</code> offers that has messages.
+ * Shards other than the last one offered are only waited on for up to
+ * <code>PROBE_WAIT_SECONDS</code>.
+ * The capacity can be changed as we go, such as when the number of
+ * threads is adjusted; messages already buffered are kept.
+ */
+public class MessageBuffer {
+    // begin constants
+    public static final int PROBE_WAIT_SECONDS = 1;
+    // end constants
+
+    // begin instance variables
+    private final AWSParameters parameters;
+    private int capacity;
+    private final VisibilityHeartbeat heartbeat;
+    // only used by whoever is filling
+    private final ShardSelector shards;
+    // each message along with the time it was received
+    private final LinkedList< Pair< Message, Long > > buffer;
+    // whether or not some thread is receiving
+    private boolean filling;
+    // how many full-length receives in a row came back empty
+    private int numEmptyFills;
+    // end instance variables
+
+    public MessageBuffer( AWSParameters parameters,
+			  VisibilityHeartbeat heartbeat ) {
+	this( parameters,
+	      parameters.getPrefetchSize(),
+	      heartbeat );
+    }
+
+    public MessageBuffer( AWSParameters parameters,
+			  int capacity,
+			  VisibilityHeartbeat heartbeat ) {
+	this.parameters = parameters;
+	this.capacity = Math.max( capacity, 1 );
+	this.heartbeat = heartbeat;
+	shards = new ShardSelector( parameters.getShardUrls() );
+	buffer = new LinkedList< Pair< Message, Long > >();
+	filling = false;
+	numEmptyFills = 0;
+    }
+
+    /**
+     * Receives up to the given number of messages, waiting at most the
+     * given number of seconds for them to arrive.
+     * Called without holding the buffer, by one thread at a time.
+     */
+    protected List< Message > receive( int numToGet,
+				       int waitTime ) {
+	List< String > order = shards.order();
+	for( int x = 0; x < order.size(); x++ ) {
+	    String shard = order.get( x );
+	    int shardWaitTime = ( x == order.size() - 1 ) ?
+		waitTime : Math.min( waitTime, PROBE_WAIT_SECONDS );
+	    List< Message > messages =
+		parameters.getMessages(
+		  parameters.makeMessageRequest( shard,
+						 parameters.getVisibilityTimeout(),
+						 numToGet,
+						 shardWaitTime ) );
+	    shards.received( shard, messages.isEmpty() );
+	    if ( !messages.isEmpty() ) {
+		return messages;
+	    }
+	}
+	return new ArrayList< Message >();
+    }
+
+    /**
+     * Receives as many messages as will fit, up to the most SQS allows
+     * in a single receive, waiting at most the given number of seconds
+     * for them to arrive.
+     * Whoever calls this must have set <code>filling</code>; it is
+     * cleared, and any waiting threads woken, once the receive is done.
+     */
+    protected void fill( int numToGet,
+			 int waitTime ) {
+	List< Message > messages = null;
+	try {
+	    messages = receive( numToGet, waitTime );
+	} finally {
+	    synchronized( this ) {
+		filling = false;
+		if ( messages != null ) {
+		    Long receivedAt = Long.valueOf( System.currentTimeMillis() );
+		    for( Message message : messages ) {
+			buffer.add( new Pair< Message, Long >( message, receivedAt ) );
+		    }
+		    if ( !messages.isEmpty() ) {
+			numEmptyFills = 0;
+		    } else if ( waitTime == parameters.getReceiveWaitTime() ) {
+			numEmptyFills++;
+		    }
+		}
+		notifyAll();
+	    }
+	}
+    }
+
+    /**
+     * Prepares a buffered message to be handed out, starting to track
+     * it with the heartbeat.
+     * Returns null if the message was buffered for so long that its
+     * visibility timeout already expired, since someone else may now
+     * own it.
+     */
+    protected Message handOut( Pair< Message, Long > buffered ) {
+	long visibleAt =
+	    buffered.second.longValue() +
+	    parameters.getVisibilityTimeout() * 1000L;
+	if ( visibleAt <= System.currentTimeMillis() ) {
+	    return null;
+	}
+	heartbeat.track( buffered.first, visibleAt );
+	return buffered.first;
+    }
+
+    /**
+     * Hands out the next buffered message, or gets null if there are
+     * none.
+     */
+    protected synchronized Message takeBuffered() {
+	Message retval = null;
+	while ( retval == null && !buffer.isEmpty() ) {
+	    retval = handOut( buffer.removeFirst() );
+	}
+	return retval;
+    }
+
+    /**
+     * Gets the next message, receiving more from SQS if the buffer
+     * is empty.
+     * Returns null if SQS had nothing to give us.
+     */
+    public Message nextMessage() {
+	return nextMessage( parameters.getReceiveWaitTime(), true );
+    }
+
+    /**
+     * Like <code>nextMessage</code>, but doesn't wait for messages to
+     * arrive if SQS has none at hand, or for another thread's receive.
+     */
+    public Message nextMessageNoWait() {
+	return nextMessage( 0, false );
+    }
+
+    protected Message nextMessage( int waitTime,
+				   boolean waitForOthers ) {
+	int numToGet;
+	synchronized( this ) {
+	    while ( true ) {
+		Message retval = takeBuffered();
+		if ( retval != null ) {
+		    return retval;
+		} else if ( !filling ) {
+		    break;
+		} else if ( !waitForOthers ) {
+		    return null;
+		}
+		int emptyFillsBefore = numEmptyFills;
+		while ( filling ) {
+		    try {
+			wait();
+		    } catch ( InterruptedException e ) {
+			return null;
+		    }
+		}
+		if ( buffer.isEmpty() && numEmptyFills > emptyFillsBefore ) {
+		    // that receive counts for us too
+		    return null;
+		}
+	    }
+	    filling = true;
+	    numToGet = Math.min( capacity - buffer.size(),
+				 AWSParameters.MAX_NUMBER_MESSAGES );
+	}
+	fill( numToGet, waitTime );
+	return takeBuffered();
+    }
+
+    /**
+     * Sets the most messages to hold at once.
+     */
+    public synchronized void setCapacity( int capacity ) {
+	this.capacity = Math.max( capacity, 1 );
+    }
+
+    /**
+     * Gets how many receives in a row, waiting as long as the
+     * <code>receiveWaitTime</code> parameter says, came back empty.
+     */
+    public synchronized int getNumEmptyFills() {
+	return numEmptyFills;
+    }
+
+    /**
+     * Makes all buffered messages immediately visible again, so that
+     * other workers can pick them up.
+     */
+    public synchronized void returnMessages() {
+	while ( !buffer.isEmpty() ) {
+	    List< Message > batch = new ArrayList< Message >();
+	    while ( !buffer.isEmpty() &&
+		    batch.size() < AWSParameters.MAX_NUMBER_MESSAGES ) {
+		batch.add( buffer.removeFirst().first );
+	    }
+	    parameters.changeMessageVisibility( batch, 0 );
+	}
+    }
+}
@@ -0,0 +1,117 @@
+import com.amazonaws.*;
+import com.amazonaws.services.sqs.model.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Deletes messages from SQS in the background, so that worker threads
+ * can move on to their next file right away.
+ * Messages from all threads are coalesced into batch deletes of up to
+ * <code>AWSParameters.MAX_NUMBER_MESSAGES</code>.  A batch is sent once it
+ * is full, or once its first message has waited for
+ * <code>LINGER_MILLISECONDS</code>.
+ */
+public class MessageDeleter {
+    // begin constants
+    public static final int LINGER_MILLISECONDS = 200;
+    // end constants
+
+    // begin instance variables
+    private final AWSParameters parameters;
+    private final BlockingQueue< Message > pending;
+    private final Thread thread;
+    private volatile boolean shouldRun;
+    // end instance variables
+
+    public MessageDeleter( AWSParameters parameters ) {
+	this.parameters = parameters;
+	pending = new LinkedBlockingQueue< Message >();
+	shouldRun = true;
+	thread = new Thread( new Runnable() {
+		public void run() {
+		    deleteUntilShutdown();
+		}
+	    } );
+	thread.setDaemon( true );
+	thread.start();
+    }
+
+    /**
+     * Queues up the given message to be deleted.
+     */
+    public void delete( Message message ) {
+	pending.add( message );
+    }
+
+    /**
+     * Gets the next batch of messages to delete.
+     * Returns an empty batch if nothing showed up in time.
+     */
+    protected List< Message > nextBatch() throws InterruptedException {
+	List< Message > retval = new ArrayList< Message >();
+	Message first = pending.poll( LINGER_MILLISECONDS,
+				      TimeUnit.MILLISECONDS );
+	if ( first != null ) {
+	    retval.add( first );
+	    long deadline = System.currentTimeMillis() + LINGER_MILLISECONDS;
+	    while ( retval.size() < AWSParameters.MAX_NUMBER_MESSAGES ) {
+		long remaining = deadline - System.currentTimeMillis();
+		Message next = ( remaining > 0 ) ?
+		    pending.poll( remaining, TimeUnit.MILLISECONDS ) : pending.poll();
+		if ( next == null ) {
+		    break;
+		}
+		retval.add( next );
+	    }
+	}
+	return retval;
+    }
+
+    /**
+     * Deletes the given messages with a single request, retrying any
+     * that failed individually.
+     */
+    protected void deleteBatch( List< Message > batch ) {
+	List< Message > failed = new ArrayList< Message >();
+	try {
+	    DeleteMessageBatchResult result = parameters.deleteMessages( batch );
+	    for( BatchResultErrorEntry error : result.getFailed() ) {
+		failed.add( batch.get( Integer.parseInt( error.getId() ) ) );
+	    }
+	} catch ( AmazonClientException e ) {
+	    failed = batch;
+	}
+
+	for( Message message : failed ) {
+	    try {
+		parameters.deleteMessage( message );
+	    } catch ( AmazonClientException e ) {
+		// at worst the file will be processed again
+		e.printStackTrace();
+		System.err.println( e );
+	    }
+	}
+    }
+
+    protected void deleteUntilShutdown() {
+	while ( shouldRun || !pending.isEmpty() ) {
+	    try {
+		List< Message > batch = nextBatch();
+		if ( !batch.isEmpty() ) {
+		    deleteBatch( batch );
+		}
+	    } catch ( InterruptedException e ) {}
+	}
+    }
+
+    /**
+     * Deletes everything still pending, and then stops.
+     */
+    public void shutdown() {
+	shouldRun = false;
+	try {
+	    thread.join();
+	} catch ( InterruptedException e ) {}
+    }
+}
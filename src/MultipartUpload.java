@@ -0,0 +1,390 @@
+import com.amazonaws.*;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Uploads a single large object as several parts at once.
+ * Parts can also be copied from another object, for objects too big to
+ * copy with a single request.
+ * Parts run on the shared transfer threads of <code>AWSParameters</code>,
+ * with at most <code>multipartConcurrency</code> parts of a given upload
+ * in flight at once.  Each part is retried on its own.  If a part
+ * fails for good, the whole upload is aborted so that S3 doesn't keep
+ * (and charge for) the parts that did make it.
+ */
+public class MultipartUpload {
+    // begin constants
+    // S3 rejects parts smaller than this, except for the last one
+    public static final long MIN_PART_SIZE = 1024L * 1024L * 5L;
+    public static final int MAX_NUM_PARTS = 10000;
+    // the biggest object S3 copies with a single request
+    public static final long MAX_COPY_SIZE = 1024L * 1024L * 1024L * 5L;
+    // end constants
+
+    /**
+     * Decides whether an upload should go through, once everything
+     * to upload has been read.
+     */
+    public static interface Verifier {
+	/**
+	 * Throws if the upload shouldn't go through.
+	 */
+	public void verify() throws IOException;
+    }
+
+    // begin instance variables
+    private final AWSParameters parameters;
+    private final String bucket;
+    private final String key;
+    private final Semaphore inFlight;
+    private final List< Future< PartETag > > parts;
+    private String uploadId;
+    // end instance variables
+
+    public MultipartUpload( AWSParameters parameters,
+			    String bucket,
+			    String key ) {
+	this.parameters = parameters;
+	this.bucket = bucket;
+	this.key = key;
+	inFlight = new Semaphore( parameters.getMultipartConcurrency() );
+	parts = new ArrayList< Future< PartETag > >();
+	uploadId = null;
+    }
+
+    /**
+     * Tells S3 that we are starting the upload.
+     * Must be called before any parts are added.
+     */
+    public void start() {
+	uploadId = 
+	    parameters.getS3().initiateMultipartUpload( 
+	      new InitiateMultipartUploadRequest( bucket, key ) ).getUploadId();
+    }
+
+    protected UploadPartRequest makePartRequest( int partNumber ) {
+	return new UploadPartRequest()
+	    .withBucketName( bucket )
+	    .withKey( key )
+	    .withUploadId( uploadId )
+	    .withPartNumber( partNumber );
+    }
+
+    /**
+     * Makes a part with the given attempt, retrying it if S3 fails.
+     */
+    protected PartETag retryPart( Callable< PartETag > attempt ) 
+	throws Exception {
+	int seconds = AWSParameters.START_SECONDS_TO_RETRY;
+	for( int x = 1; ; x++ ) {
+	    try {
+		return attempt.call();
+	    } catch ( AmazonClientException e ) {
+		if ( x >= AWSParameters.NUM_RETRIES ) {
+		    throw e;
+		}
+	    }
+	    Thread.sleep( seconds * 1000L );
+	    seconds *= 2;
+	}
+    }
+
+    /**
+     * Starts making the next part in the background, waiting first
+     * if too many parts are already in flight.
+     */
+    protected void submitPart( final Callable< PartETag > attempt ) 
+	throws IOException {
+	try {
+	    inFlight.acquire();
+	} catch ( InterruptedException e ) {
+	    throw new IOException( "Interrupted while uploading " + key );
+	}
+	try {
+	    parts.add( parameters.getTransferExecutor().submit( new Callable< PartETag >() {
+		    public PartETag call() throws Exception {
+			try {
+			    return retryPart( attempt );
+			} finally {
+			    inFlight.release();
+			}
+		    }
+		} ) );
+	} catch ( RejectedExecutionException e ) {
+	    inFlight.release();
+	    throw e;
+	}
+    }
+
+    /**
+     * Uploads a part, making a fresh request for each attempt.
+     */
+    protected void submitUpload( final Callable< UploadPartRequest > makeRequest ) 
+	throws IOException {
+	submitPart( new Callable< PartETag >() {
+		public PartETag call() throws Exception {
+		    return parameters.getS3().uploadPart( makeRequest.call() ).getPartETag();
+		}
+	    } );
+    }
+
+    /**
+     * Adds the given region of the given file as the next part.
+     */
+    public void addPart( final File file,
+			 final long offset,
+			 final long size ) throws IOException {
+	final int partNumber = parts.size() + 1;
+	submitUpload( new Callable< UploadPartRequest >() {
+		public UploadPartRequest call() {
+		    return makePartRequest( partNumber )
+			.withFile( file )
+			.withFileOffset( offset )
+			.withPartSize( size );
+		}
+	    } );
+    }
+
+    /**
+     * Adds the first given number of bytes of the given array as the
+     * next part.  The array must not be changed afterward.
+     */
+    public void addPart( final byte[] bytes,
+			 final int length ) throws IOException {
+	final int partNumber = parts.size() + 1;
+	submitUpload( new Callable< UploadPartRequest >() {
+		public UploadPartRequest call() {
+		    return makePartRequest( partNumber )
+			.withInputStream( new ByteArrayInputStream( bytes, 0, length ) )
+			.withPartSize( length );
+		}
+	    } );
+    }
+
+    /**
+     * Adds the bytes from first to last (inclusive) of the given
+     * object as the next part, as long as the object still has the
+     * given ETag.
+     */
+    public void addCopyPart( final String sourceBucket,
+			     final String sourceKey,
+			     final String eTag,
+			     final long first,
+			     final long last ) throws IOException {
+	final int partNumber = parts.size() + 1;
+	submitPart( new Callable< PartETag >() {
+		public PartETag call() throws IOException {
+		    CopyPartResult result =
+			parameters.getS3().copyPart( new CopyPartRequest()
+						     .withSourceBucketName( sourceBucket )
+						     .withSourceKey( sourceKey )
+						     .withDestinationBucketName( bucket )
+						     .withDestinationKey( key )
+						     .withUploadId( uploadId )
+						     .withPartNumber( partNumber )
+						     .withFirstByte( Long.valueOf( first ) )
+						     .withLastByte( Long.valueOf( last ) )
+						     .withMatchingETagConstraint( eTag ) );
+		    if ( result == null ) {
+			throw new IOException( "Object " + sourceKey + " changed during copy" );
+		    }
+		    return result.getPartETag();
+		}
+	    } );
+    }
+
+    /**
+     * Waits for all parts and then tells S3 to put them together.
+     * If any part failed, or S3 couldn't put them together, the upload
+     * is aborted and the failure thrown.
+     */
+    public void complete() throws IOException {
+	List< PartETag > eTags = new ArrayList< PartETag >();
+	try {
+	    for( Future< PartETag > part : parts ) {
+		eTags.add( part.get() );
+	    }
+	} catch ( ExecutionException e ) {
+	    abort();
+	    Throwable cause = e.getCause();
+	    if ( cause instanceof IOException ) {
+		throw (IOException)cause;
+	    } else if ( cause instanceof RuntimeException ) {
+		throw (RuntimeException)cause;
+	    } else {
+		throw new IOException( cause );
+	    }
+	} catch ( InterruptedException e ) {
+	    abort();
+	    throw new IOException( "Interrupted while uploading " + key );
+	}
+
+	try {
+	    parameters.getS3().completeMultipartUpload( 
+	      new CompleteMultipartUploadRequest( bucket, key, uploadId, eTags ) );
+	} catch ( RuntimeException e ) {
+	    abort();
+	    throw e;
+	}
+    }
+
+    /**
+     * Gives up on the upload, throwing away any parts that made it.
+     * Does nothing if the upload was already given up on.
+     */
+    public void abort() {
+	for( Future< PartETag > part : parts ) {
+	    part.cancel( true );
+	}
+	if ( uploadId != null ) {
+	    try {
+		parameters.getS3().abortMultipartUpload( 
+		  new AbortMultipartUploadRequest( bucket, key, uploadId ) );
+	    } catch ( AmazonClientException e ) {
+		// S3 will hold onto the parts, but there's nothing more we can do
+		e.printStackTrace();
+		System.err.println( e );
+	    }
+	    uploadId = null;
+	}
+    }
+
+    /**
+     * Reads from the given stream until the given buffer is full or
+     * the stream ends.  Returns how many bytes were read.
+     */
+    public static int readFully( InputStream input,
+				 byte[] buffer ) throws IOException {
+	int retval = 0;
+	int numRead;
+	while ( retval < buffer.length &&
+		( numRead = input.read( buffer, retval, buffer.length - retval ) ) != -1 ) {
+	    retval += numRead;
+	}
+	return retval;
+    }
+
+    /**
+     * Uploads everything in the given stream as the given key, as it is
+     * read.  Streams that fit in a single part are uploaded with a
+     * single request.
+     * Once the stream ends, the given verifier (if any) is asked
+     * whether the upload should go through.  If it throws, the upload
+     * is aborted and nothing is stored.
+     * Returns false if the stream was empty, in which case nothing is
+     * uploaded.
+     */
+    public static boolean uploadStream( AWSParameters parameters,
+					String bucket,
+					String key,
+					InputStream input,
+					Verifier verifier ) throws IOException {
+	int partSize = (int)Math.min( Integer.MAX_VALUE,
+				      parameters.getMultipartPartSize() );
+	byte[] part = new byte[ partSize ];
+	int length = readFully( input, part );
+	if ( length < partSize && verifier != null ) {
+	    verifier.verify();
+	}
+	if ( length == 0 ) {
+	    return false;
+	} else if ( length < partSize ) {
+	    ObjectMetadata metadata = new ObjectMetadata();
+	    metadata.setContentLength( length );
+	    parameters.getS3().putObject( bucket,
+					  key,
+					  new ByteArrayInputStream( part, 0, length ),
+					  metadata );
+	    return true;
+	}
+
+	MultipartUpload upload = new MultipartUpload( parameters, bucket, key );
+	upload.start();
+	try {
+	    while ( length > 0 ) {
+		upload.addPart( part, length );
+		part = new byte[ partSize ];
+		length = readFully( input, part );
+	    }
+	    if ( verifier != null ) {
+		verifier.verify();
+	    }
+	    upload.complete();
+	} catch ( IOException e ) {
+	    upload.abort();
+	    throw e;
+	} catch ( RuntimeException e ) {
+	    upload.abort();
+	    throw e;
+	}
+	return true;
+    }
+
+    /**
+     * Copies the given object, which has the given ETag and size, to
+     * the given key, in parts of the configured size.  Parts are made
+     * bigger if there would otherwise be more than S3 allows.
+     * @throws IOException If the object changed
+     */
+    public static void copyObject( AWSParameters parameters,
+				   String sourceBucket,
+				   String sourceKey,
+				   String eTag,
+				   long size,
+				   String bucket,
+				   String key ) throws IOException {
+	long partSize = Math.max( parameters.getMultipartPartSize(),
+				  ( size + MAX_NUM_PARTS - 1 ) / MAX_NUM_PARTS );
+	MultipartUpload upload = new MultipartUpload( parameters, bucket, key );
+	upload.start();
+	try {
+	    for( long offset = 0; offset < size; offset += partSize ) {
+		upload.addCopyPart( sourceBucket,
+				    sourceKey,
+				    eTag,
+				    offset,
+				    Math.min( size, offset + partSize ) - 1 );
+	    }
+	    upload.complete();
+	} catch ( IOException e ) {
+	    upload.abort();
+	    throw e;
+	} catch ( RuntimeException e ) {
+	    upload.abort();
+	    throw e;
+	}
+    }
+
+    /**
+     * Uploads the given file as the given key, in parts of the
+     * configured size.  Parts are made bigger if there would otherwise
+     * be more than S3 allows.
+     */
+    public static void uploadFile( AWSParameters parameters,
+				   String bucket,
+				   String key,
+				   File file ) throws IOException {
+	long length = file.length();
+	long partSize = Math.max( parameters.getMultipartPartSize(),
+				  ( length + MAX_NUM_PARTS - 1 ) / MAX_NUM_PARTS );
+	MultipartUpload upload = new MultipartUpload( parameters, bucket, key );
+	upload.start();
+	try {
+	    for( long offset = 0; offset < length; offset += partSize ) {
+		upload.addPart( file,
+				offset,
+				Math.min( partSize, length - offset ) );
+	    }
+	    upload.complete();
+	} catch ( IOException e ) {
+	    upload.abort();
+	    throw e;
+	} catch ( RuntimeException e ) {
+	    upload.abort();
+	    throw e;
+	}
+    }
+}
@@ -0,0 +1,12 @@
+import java.io.*;
+
+/**
+ * Thrown when an object in S3 no longer has the ETag it was expected
+ * to have, because it was overwritten since it was listed or while it
+ * was being downloaded.
+ */
+public class ObjectChangedException extends IOException {
+    public ObjectChangedException( String key ) {
+	super( "Object " + key + " changed during download" );
+    }
+}
@@ -0,0 +1,109 @@
+import com.amazonaws.*;
+import com.amazonaws.services.s3.*;
+import com.amazonaws.services.s3.model.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Goes through the objects in a bucket a page at a time, asking for
+ * the next page in the background while the current one is gone
+ * through.  Only two pages are held at once, and nothing is listed
+ * until the first object is asked for.
+ * @throws AmazonClientException If listing fails
+ */
+public class ObjectListingIterator implements Iterator< S3ObjectSummary > {
+    // begin constants
+    // shared by all listings, since each only needs a thread while a
+    // request is out
+    private static final ExecutorService PREFETCHER =
+	Executors.newCachedThreadPool( new ThreadFactory() {
+		public Thread newThread( Runnable runnable ) {
+		    Thread retval = new Thread( runnable );
+		    retval.setDaemon( true );
+		    return retval;
+		}
+	    } );
+    // end constants
+
+    // begin instance variables
+    private final AmazonS3 s3;
+    private final ListObjectsRequest request;
+    private Iterator< S3ObjectSummary > page;
+    // null once there are no more pages
+    private Future< ObjectListing > nextListing;
+    private boolean started;
+    // end instance variables
+
+    public ObjectListingIterator( AmazonS3 s3,
+				  ListObjectsRequest request ) {
+	this.s3 = s3;
+	this.request = request;
+	page = Collections.< S3ObjectSummary >emptyList().iterator();
+	nextListing = null;
+	started = false;
+    }
+
+    public ObjectListingIterator( AmazonS3 s3,
+				  String bucketName,
+				  String prefix ) {
+	this( s3, 
+	      new ListObjectsRequest()
+	      .withBucketName( bucketName )
+	      .withPrefix( prefix ) );
+    }
+
+    /**
+     * Starts getting the page after the given one, if there is one.
+     */
+    protected void prefetch( final ObjectListing listing ) {
+	if ( listing.isTruncated() ) {
+	    nextListing = PREFETCHER.submit( new Callable< ObjectListing >() {
+		    public ObjectListing call() {
+			return s3.listNextBatchOfObjects( listing );
+		    }
+		} );
+	} else {
+	    nextListing = null;
+	}
+    }
+
+    /**
+     * Switches to the given page.
+     */
+    protected void use( ObjectListing listing ) {
+	prefetch( listing );
+	page = listing.getObjectSummaries().iterator();
+    }
+
+    public boolean hasNext() {
+	if ( !started ) {
+	    started = true;
+	    use( s3.listObjects( request ) );
+	}
+	while ( !page.hasNext() && nextListing != null ) {
+	    try {
+		use( nextListing.get() );
+	    } catch ( InterruptedException e ) {
+		throw new AmazonClientException( "Interrupted while listing", e );
+	    } catch ( ExecutionException e ) {
+		if ( e.getCause() instanceof AmazonClientException ) {
+		    throw (AmazonClientException)e.getCause();
+		}
+		throw new AmazonClientException( "Could not list", e.getCause() );
+	    }
+	}
+	return page.hasNext();
+    }
+
+    public S3ObjectSummary next() {
+	if ( !hasNext() ) {
+	    throw new NoSuchElementException();
+	}
+	return page.next();
+    }
+
+    public void remove() {
+	throw new UnsupportedOperationException();
+    }
+}
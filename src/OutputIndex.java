@@ -0,0 +1,91 @@
+import com.amazonaws.services.s3.*;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * The keys in a bucket, kept compactly enough to check tens of millions
+ * of them on a laptop.
+ * Each key is kept as a 64-bit fingerprint (the start of its MD5) in a
+ * sorted array, so it takes 8 bytes no matter how long the key is.
+ * Two keys only look the same if their fingerprints collide, which for
+ * tens of millions of keys is about a one in a trillion chance per key
+ * checked.  A key that is found may still not be there, so callers
+ * that can't afford that should check with S3.
+ */
+public class OutputIndex {
+    // begin constants
+    public static final String ALGORITHM = "MD5";
+    public static final String ENCODING = "UTF-8";
+    public static final int INITIAL_CAPACITY = 1024;
+    // end constants
+
+    // begin instance variables
+    private final MessageDigest digest;
+    private long[] fingerprints;
+    private int size;
+    // end instance variables
+
+    /**
+     * Lists the given bucket with the given number of threads.
+     */
+    public OutputIndex( AmazonS3 s3,
+			String bucketName,
+			int numThreads ) {
+	digest = makeDigest();
+	fingerprints = new long[ INITIAL_CAPACITY ];
+	size = 0;
+	for( S3ObjectSummary summary : new ParallelListing( s3,
+							     bucketName,
+							     "",
+							     numThreads,
+							     false ) ) {
+	    if ( size == fingerprints.length ) {
+		fingerprints = Arrays.copyOf( fingerprints, size * 2 );
+	    }
+	    fingerprints[ size++ ] = fingerprint( summary.getKey() );
+	}
+	Arrays.sort( fingerprints, 0, size );
+	fingerprints = Arrays.copyOf( fingerprints, size );
+    }
+
+    protected static MessageDigest makeDigest() {
+	try {
+	    return MessageDigest.getInstance( ALGORITHM );
+	} catch ( NoSuchAlgorithmException e ) {
+	    // every JVM has MD5
+	    throw new RuntimeException( e );
+	}
+    }
+
+    protected long fingerprint( String key ) {
+	byte[] hash;
+	try {
+	    hash = digest.digest( key.getBytes( ENCODING ) );
+	} catch ( UnsupportedEncodingException e ) {
+	    // every JVM has UTF-8
+	    throw new RuntimeException( e );
+	}
+	long retval = 0;
+	for( int x = 0; x < 8; x++ ) {
+	    retval = ( retval << 8 ) | ( hash[ x ] & 0xFF );
+	}
+	return retval;
+    }
+
+    /**
+     * Gets how many keys were listed.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Whether or not the given key was probably listed.
+     */
+    public synchronized boolean contains( String key ) {
+	return Arrays.binarySearch( fingerprints, fingerprint( key ) ) >= 0;
+    }
+}
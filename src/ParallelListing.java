@@ -0,0 +1,536 @@
+import com.amazonaws.*;
+import com.amazonaws.services.s3.*;
+import com.amazonaws.services.s3.model.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Lists the objects in a bucket with several requests at once.
+ * The keyspace is split into partitions, each of which is listed by its
+ * own thread, and the pages they get are merged into a single
+ * iteration.
+ * The partitions are the prefixes up to the next <code>/</code>, if
+ * there are any.  Otherwise they are ranges of keys starting at each of
+ * <code>SPLIT_CHARACTERS</code> after the prefix that all the keys have
+ * in common, and then at each pair of them if there are still too few.
+ * These are found by asking for the first key after each with a start
+ * marker.  If there are fewer prefixes than threads, those with more
+ * than a page of keys are split into ranges in turn, so that a bucket
+ * with a few big directories is still listed in parallel.
+ * Objects come out in key order if asked for; otherwise they come out
+ * in whatever order the partitions get them.  Either way only a few
+ * pages per partition are held at once.
+ */
+public class ParallelListing implements Iterable< S3ObjectSummary > {
+    // begin constants
+    public static final int DEFAULT_THREADS = 16;
+    public static final String DELIMITER = "/";
+    // where key ranges are split
+    public static final String SPLIT_CHARACTERS = 
+	"0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    // the most characters after the common prefix that key ranges are
+    // split on
+    public static final int MAX_SPLIT_DEPTH = 2;
+    // comes after any other character in UTF-8 (U+10FFFF)
+    public static final String LAST_CHARACTER = "\uDBFF\uDFFF";
+    // how many pages to hold per partition
+    public static final int PAGES_PER_PARTITION = 4;
+    private static final List< S3ObjectSummary > END_OF_PARTITION =
+	new ArrayList< S3ObjectSummary >();
+    // end constants
+
+    /**
+     * A part of the keyspace: the keys with the given prefix that come
+     * after the marker (if any), up to and including the last key (if
+     * any).  If the objects are already known, they aren't listed again.
+     */
+    public static class Partition {
+	// begin instance variables
+	public final String prefix;
+	public final String marker;
+	public final String last;
+	public final List< S3ObjectSummary > known;
+	// end instance variables
+
+	public Partition( String prefix,
+			  String marker,
+			  String last ) {
+	    this.prefix = prefix;
+	    this.marker = marker;
+	    this.last = last;
+	    known = null;
+	}
+
+	public Partition( List< S3ObjectSummary > known ) {
+	    prefix = null;
+	    marker = null;
+	    last = null;
+	    this.known = known;
+	}
+
+	/**
+	 * Gets the part of this partition after the given key.
+	 */
+	public Partition after( String key ) {
+	    if ( known == null ) {
+		return new Partition( prefix, key, last );
+	    }
+	    List< S3ObjectSummary > rest = new ArrayList< S3ObjectSummary >();
+	    for( S3ObjectSummary summary : known ) {
+		if ( summary.getKey().compareTo( key ) > 0 ) {
+		    rest.add( summary );
+		}
+	    }
+	    return new Partition( rest );
+	}
+    }
+
+    /**
+     * Goes through the listing, keeping track of which partition each
+     * object came from.
+     */
+    public class Cursor implements Iterator< S3ObjectSummary > {
+	// begin instance variables
+	private final List< BlockingQueue< Pair< Partition, List< S3ObjectSummary > > > > queues;
+	private int numEnded;
+	private Partition partition;
+	private Iterator< S3ObjectSummary > page;
+	// end instance variables
+
+	protected Cursor( List< BlockingQueue< Pair< Partition, List< S3ObjectSummary > > > > queues ) {
+	    this.queues = queues;
+	    numEnded = 0;
+	    partition = null;
+	    page = Collections.< S3ObjectSummary >emptyList().iterator();
+	}
+
+	public boolean hasNext() {
+	    while ( !page.hasNext() ) {
+		if ( numEnded == queues.size() ) {
+		    return false;
+		}
+		Pair< Partition, List< S3ObjectSummary > > next;
+		try {
+		    next = queues.get( ordered ? numEnded : 0 ).take();
+		} catch ( InterruptedException e ) {
+		    throw new AmazonClientException( "Interrupted while listing", e );
+		}
+		if ( next.second == END_OF_PARTITION ) {
+		    numEnded++;
+		    if ( error != null ) {
+			close();
+			throw error;
+		    }
+		} else {
+		    partition = next.first;
+		    page = next.second.iterator();
+		}
+	    }
+	    return true;
+	}
+
+	public S3ObjectSummary next() {
+	    if ( !hasNext() ) {
+		throw new NoSuchElementException();
+	    }
+	    return page.next();
+	}
+
+	/**
+	 * Gets the partition that the object last gotten came from.
+	 */
+	public Partition getPartition() {
+	    return partition;
+	}
+
+	public void remove() {
+	    throw new UnsupportedOperationException();
+	}
+    }
+
+    // begin instance variables
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final String prefix;
+    private final int numThreads;
+    private final boolean ordered;
+    // if not null, these are listed instead of partitioning the bucket
+    private final List< Partition > given;
+    private List< Partition > partitions;
+    private ExecutorService executor;
+    private volatile AmazonClientException error;
+    // end instance variables
+
+    public ParallelListing( AmazonS3 s3,
+			    String bucketName,
+			    String prefix,
+			    int numThreads,
+			    boolean ordered ) {
+	this.s3 = s3;
+	this.bucketName = bucketName;
+	this.prefix = prefix;
+	this.numThreads = Math.max( 1, numThreads );
+	this.ordered = ordered;
+	given = null;
+	partitions = null;
+	executor = null;
+	error = null;
+    }
+
+    /**
+     * Lists the given partitions of the given bucket, such as those of
+     * an earlier listing that didn't finish.
+     */
+    public ParallelListing( AmazonS3 s3,
+			    String bucketName,
+			    List< Partition > partitions,
+			    int numThreads,
+			    boolean ordered ) {
+	this.s3 = s3;
+	this.bucketName = bucketName;
+	prefix = null;
+	this.numThreads = Math.max( 1, numThreads );
+	this.ordered = ordered;
+	given = partitions;
+	this.partitions = null;
+	executor = null;
+	error = null;
+    }
+
+    public ParallelListing( AmazonS3 s3,
+			    String bucketName ) {
+	this( s3, bucketName, "", DEFAULT_THREADS, false );
+    }
+
+    protected ListObjectsRequest makeRequest( String prefix ) {
+	return new ListObjectsRequest()
+	    .withBucketName( bucketName )
+	    .withPrefix( prefix );
+    }
+
+    /**
+     * Splits the keys with the given prefix into partitions, in key
+     * order.
+     */
+    protected List< Partition > partition( String prefix ) 
+	throws InterruptedException {
+	ObjectListing top = s3.listObjects( makeRequest( prefix ).withDelimiter( DELIMITER ) );
+	if ( top.isTruncated() ) {
+	    // too many to go through one level at a time
+	    return rangePartitions( commonPrefix( prefix ) );
+	}
+	List< String > prefixes = top.getCommonPrefixes();
+	List< S3ObjectSummary > loose = top.getObjectSummaries();
+	if ( prefixes.size() == 1 && loose.isEmpty() ) {
+	    return partition( prefixes.get( 0 ) );
+	}
+
+	// prefixes and the objects between them, in key order
+	// since the prefixes end with the delimiter, the objects that come
+	// before a prefix all come before everything under it
+	List< Partition > retval = new ArrayList< Partition >();
+	List< S3ObjectSummary > between = new ArrayList< S3ObjectSummary >();
+	int looseIndex = 0;
+	for( String current : prefixes ) {
+	    while ( looseIndex < loose.size() &&
+		    loose.get( looseIndex ).getKey().compareTo( current ) < 0 ) {
+		between.add( loose.get( looseIndex++ ) );
+	    }
+	    if ( !between.isEmpty() ) {
+		retval.add( new Partition( between ) );
+		between = new ArrayList< S3ObjectSummary >();
+	    }
+	    retval.add( new Partition( current, null, null ) );
+	}
+	between.addAll( loose.subList( looseIndex, loose.size() ) );
+	if ( !between.isEmpty() ) {
+	    retval.add( new Partition( between ) );
+	}
+	return splitLarge( retval );
+    }
+
+    /**
+     * Splits the prefix partitions among the given ones that have more
+     * than a page of keys into ranges, for as long as there are fewer
+     * partitions than threads.  The partitions stay in key order.
+     */
+    protected List< Partition > splitLarge( List< Partition > partitions )
+	throws InterruptedException {
+	List< Partition > retval = new ArrayList< Partition >( partitions );
+	for( int x = 0; x < retval.size() && retval.size() < numThreads; x++ ) {
+	    Partition partition = retval.get( x );
+	    if ( partition.known == null &&
+		 s3.listObjects( makeRequest( partition.prefix ) ).isTruncated() ) {
+		List< Partition > ranges = 
+		    rangePartitions( commonPrefix( partition.prefix ) );
+		retval.remove( x );
+		retval.addAll( x, ranges );
+		x += ranges.size() - 1;
+	    }
+	}
+	return retval;
+    }
+
+    /**
+     * Gets the first key with the given prefix after the given marker,
+     * or null if there isn't one.
+     */
+    protected String firstKeyAfter( String prefix,
+				    String marker ) {
+	List< S3ObjectSummary > summaries = 
+	    s3.listObjects( makeRequest( prefix )
+			    .withMarker( marker )
+			    .withMaxKeys( 1 ) ).getObjectSummaries();
+	return summaries.isEmpty() ? null : summaries.get( 0 ).getKey();
+    }
+
+    /**
+     * Gets the longest prefix that all the keys with the given prefix
+     * have in common.
+     * This is a binary search over the first key: everything starts
+     * with a prefix of it if there's nothing after that prefix followed
+     * by <code>LAST_CHARACTER</code>.
+     */
+    protected String commonPrefix( String prefix ) {
+	String first = firstKeyAfter( prefix, null );
+	if ( first == null ) {
+	    return prefix;
+	}
+	int low = prefix.length();
+	int high = first.length();
+	while ( low < high ) {
+	    int middle = ( low + high + 1 ) / 2;
+	    String candidate = first.substring( 0, middle );
+	    if ( !Character.isHighSurrogate( candidate.charAt( middle - 1 ) ) &&
+		 firstKeyAfter( prefix, candidate + LAST_CHARACTER ) == null ) {
+		low = middle;
+	    } else {
+		high = middle - 1;
+	    }
+	}
+	return first.substring( 0, low );
+    }
+
+    /**
+     * Starts getting the first key after each of the given markers
+     * that we don't already have.
+     */
+    protected void probe( final String prefix,
+			  Collection< String > markers,
+			  Map< String, Future< String > > firstKeys ) {
+	for( final String marker : markers ) {
+	    if ( !firstKeys.containsKey( marker ) ) {
+		firstKeys.put( marker, executor.submit( new Callable< String >() {
+			public String call() {
+			    return firstKeyAfter( prefix, marker );
+			}
+		    } ) );
+	    }
+	}
+    }
+
+    /**
+     * Gets which of the given markers, in order, start ranges that have
+     * keys in them.  A range goes from its marker up to the next one.
+     * An empty range is left out, in which case the range before it
+     * covers it.
+     */
+    protected static List< String > nonEmpty( List< String > markers,
+					      Map< String, Future< String > > firstKeys )
+	throws InterruptedException {
+	List< String > retval = new ArrayList< String >();
+	for( int x = 0; x < markers.size(); x++ ) {
+	    String first;
+	    try {
+		first = firstKeys.get( markers.get( x ) ).get();
+	    } catch ( ExecutionException e ) {
+		if ( e.getCause() instanceof AmazonClientException ) {
+		    throw (AmazonClientException)e.getCause();
+		}
+		throw new AmazonClientException( "Could not find where keys start",
+						 e.getCause() );
+	    }
+	    if ( first == null ) {
+		// nothing here or after
+		break;
+	    }
+	    if ( x + 1 == markers.size() ||
+		 first.compareTo( markers.get( x + 1 ) ) <= 0 ) {
+		retval.add( markers.get( x ) );
+	    }
+	}
+	return retval;
+    }
+
+    /**
+     * Splits the keys with the given prefix into ranges starting at
+     * each of <code>SPLIT_CHARACTERS</code>, leaving out the empty ones.
+     * While there are fewer ranges than threads, each range is split
+     * again on the next character, up to <code>MAX_SPLIT_DEPTH</code>
+     * characters.
+     */
+    protected List< Partition > rangePartitions( String prefix ) 
+	throws InterruptedException {
+	// since the markers are ASCII after the prefix, comparing strings
+	// gives the same order as S3's comparing UTF-8 bytes
+	TreeSet< String > markers = new TreeSet< String >();
+	Map< String, Future< String > > firstKeys = new HashMap< String, Future< String > >();
+	List< String > toSplit = Collections.singletonList( prefix );
+	List< String > starts = Collections.singletonList( null );
+	probe( prefix, starts, firstKeys );
+	for( int depth = 0; depth < MAX_SPLIT_DEPTH; depth++ ) {
+	    for( String base : toSplit ) {
+		for( int x = 0; x < SPLIT_CHARACTERS.length(); x++ ) {
+		    markers.add( base + SPLIT_CHARACTERS.charAt( x ) );
+		}
+	    }
+	    probe( prefix, markers, firstKeys );
+	    List< String > candidates = new ArrayList< String >();
+	    candidates.add( null );
+	    candidates.addAll( markers );
+	    starts = nonEmpty( candidates, firstKeys );
+	    if ( starts.size() >= numThreads ) {
+		break;
+	    }
+	    toSplit = new ArrayList< String >();
+	    for( String start : starts ) {
+		if ( start != null ) {
+		    toSplit.add( start );
+		}
+	    }
+	}
+
+	List< Partition > retval = new ArrayList< Partition >();
+	for( int x = 0; x < starts.size(); x++ ) {
+	    retval.add( new Partition( prefix,
+				       starts.get( x ),
+				       ( x + 1 < starts.size() ) ? starts.get( x + 1 ) : null ) );
+	}
+	return retval;
+    }
+
+    /**
+     * Puts the pages of the given partition on the given queue,
+     * followed by <code>END_OF_PARTITION</code>.
+     */
+    protected void listPartition( Partition partition,
+				  BlockingQueue< Pair< Partition, List< S3ObjectSummary > > > pages ) {
+	try {
+	    if ( partition.known != null ) {
+		if ( !partition.known.isEmpty() ) {
+		    put( pages, partition, partition.known );
+		}
+		return;
+	    }
+	    ObjectListing listing = 
+		s3.listObjects( makeRequest( partition.prefix )
+				.withMarker( partition.marker ) );
+	    while ( true ) {
+		List< S3ObjectSummary > page = listing.getObjectSummaries();
+		if ( partition.last != null ) {
+		    for( int x = 0; x < page.size(); x++ ) {
+			if ( page.get( x ).getKey().compareTo( partition.last ) > 0 ) {
+			    // into the next partition
+			    if ( x > 0 ) {
+				put( pages,
+				     partition,
+				     new ArrayList< S3ObjectSummary >( page.subList( 0, x ) ) );
+			    }
+			    return;
+			}
+		    }
+		}
+		if ( !page.isEmpty() ) {
+		    put( pages, partition, page );
+		}
+		if ( !listing.isTruncated() ) {
+		    return;
+		}
+		listing = s3.listNextBatchOfObjects( listing );
+	    }
+	} catch ( AmazonClientException e ) {
+	    error = e;
+	} catch ( InterruptedException e ) {
+	    // closed
+	    return;
+	} finally {
+	    try {
+		put( pages, partition, END_OF_PARTITION );
+	    } catch ( InterruptedException e ) {}
+	}
+    }
+
+    protected static void put( BlockingQueue< Pair< Partition, List< S3ObjectSummary > > > pages,
+			       Partition partition,
+			       List< S3ObjectSummary > page ) throws InterruptedException {
+	pages.put( new Pair< Partition, List< S3ObjectSummary > >( partition, page ) );
+    }
+
+    /**
+     * Gets the partitions being listed, in key order, or null if
+     * listing hasn't started.
+     */
+    public synchronized List< Partition > getPartitions() {
+	return partitions;
+    }
+
+    /**
+     * Starts listing the bucket.  Each iterator lists it again.
+     * @throws AmazonClientException If listing fails, either here or
+     * while iterating
+     */
+    public synchronized Cursor iterator() {
+	close();
+	error = null;
+	executor = Executors.newFixedThreadPool( numThreads, new ThreadFactory() {
+		public Thread newThread( Runnable runnable ) {
+		    Thread retval = new Thread( runnable );
+		    retval.setDaemon( true );
+		    return retval;
+		}
+	    } );
+	if ( given != null ) {
+	    partitions = given;
+	} else {
+	    try {
+		partitions = partition( prefix );
+	    } catch ( InterruptedException e ) {
+		throw new AmazonClientException( "Interrupted while listing", e );
+	    }
+	}
+
+	// in order, each partition has its own queue, which are read in
+	// turn; otherwise they share a single queue
+	List< BlockingQueue< Pair< Partition, List< S3ObjectSummary > > > > queues =
+	    new ArrayList< BlockingQueue< Pair< Partition, List< S3ObjectSummary > > > >();
+	BlockingQueue< Pair< Partition, List< S3ObjectSummary > > > shared =
+	    new LinkedBlockingQueue< Pair< Partition, List< S3ObjectSummary > > >( numThreads * 
+										   PAGES_PER_PARTITION );
+	for( final Partition partition : partitions ) {
+	    final BlockingQueue< Pair< Partition, List< S3ObjectSummary > > > pages = ordered ?
+		new LinkedBlockingQueue< Pair< Partition, List< S3ObjectSummary > > >( PAGES_PER_PARTITION ) :
+		shared;
+	    queues.add( pages );
+	    // the pool starts these in order, so the partition being read
+	    // from is always being listed
+	    executor.execute( new Runnable() {
+		    public void run() {
+			listPartition( partition, pages );
+		    }
+		} );
+	}
+	executor.shutdown();
+	return new Cursor( queues );
+    }
+
+    /**
+     * Stops listing, for when not all the objects are needed.
+     */
+    public synchronized void close() {
+	if ( executor != null ) {
+	    executor.shutdownNow();
+	    executor = null;
+	}
+    }
+}
@@ -0,0 +1,222 @@
+import com.amazonaws.*;
+import com.amazonaws.services.sqs.model.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A worker that overlaps transfers with analysis.
+ * Files move through three stages, each with its own threads:
+ * downloading inputs, analyzing them, and uploading outputs (which
+ * also marks the file as done).  Stages are connected by bounded
+ * queues, so downloads only run a little ahead of the analysis.
+ * The analysis stage has <code>numThreads</code> threads.
+ * If invocations are batched, each analysis thread takes as many
+ * downloaded files as are waiting, up to the batch size.
+ */
+public class PipelineWorker extends Worker {
+    // begin constants
+    // tells a stage thread that there is nothing more coming
+    private static final Task END_OF_STAGE = new Task( null, null, -1, null, null );
+    // end constants
+
+    // begin instance variables
+    private final int numThreads;
+    private final BlockingQueue< Task > downloaded;
+    private final BlockingQueue< Task > analyzed;
+    // end instance variables
+
+    public PipelineWorker( AWSParameters parameters ) throws IOException {
+	this( parameters,
+	      parameters.getNumThreads() );
+    }
+
+    public PipelineWorker( AWSParameters parameters,
+			   int numThreads ) throws IOException {
+	super( parameters );
+	this.numThreads = numThreads;
+	downloaded = new ArrayBlockingQueue< Task >( parameters.getPipelineDepth() );
+	analyzed = new ArrayBlockingQueue< Task >( parameters.getPipelineDepth() );
+    }
+
+    /**
+     * Puts the given task on the given queue, waiting for room.
+     */
+    protected static void put( BlockingQueue< Task > queue, Task task ) {
+	boolean done = false;
+	while ( !done ) {
+	    try {
+		queue.put( task );
+		done = true;
+	    } catch ( InterruptedException e ) {}
+	}
+    }
+
+    /**
+     * Takes the next task off of the given queue, waiting for one.
+     */
+    protected static Task take( BlockingQueue< Task > queue ) {
+	while ( true ) {
+	    try {
+		return queue.take();
+	    } catch ( InterruptedException e ) {}
+	}
+    }
+
+    /**
+     * Takes up to the given number of tasks off of the given queue,
+     * waiting for at least one.  If this thread of the stage should
+     * stop, the last task is <code>END_OF_STAGE</code>.  Any extra
+     * <code>END_OF_STAGE</code>s are left for the other threads.
+     */
+    protected static List< Task > takeBatch( BlockingQueue< Task > queue,
+					     int max ) {
+	List< Task > retval = new ArrayList< Task >();
+	retval.add( take( queue ) );
+	if ( retval.get( 0 ) != END_OF_STAGE ) {
+	    queue.drainTo( retval, max - 1 );
+	}
+	int numEnds = 0;
+	while ( retval.remove( END_OF_STAGE ) ) {
+	    numEnds++;
+	}
+	if ( numEnds > 0 ) {
+	    for( int x = 1; x < numEnds; x++ ) {
+		put( queue, END_OF_STAGE );
+	    }
+	    retval.add( END_OF_STAGE );
+	}
+	return retval;
+    }
+
+    /**
+     * Waits a bit before trying again after something went wrong.
+     */
+    protected static void pause() {
+	try {
+	    Thread.sleep( AWSParameters.START_SECONDS_TO_RETRY * 1000L );
+	} catch ( InterruptedException e ) {}
+    }
+
+    protected Runnable makeDownloader() {
+	return new Runnable() {
+	    public void run() {
+		EmptyQueueDetector detector = 
+		    new EmptyQueueDetector( getParameters(),
+					    getMessageBuffer() );
+		boolean shouldRun = true;
+		while ( shouldRun ) {
+		    Message message;
+		    try {
+			message = nextFile();
+		    } catch ( RuntimeException e ) {
+			// most likely SQS is throttling us or unreachable
+			// for a moment, which shouldn't end the stage
+			e.printStackTrace();
+			System.err.println( e );
+			pause();
+			continue;
+		    }
+		    if ( message == null ) {
+			shouldRun = !detector.gotNothing();
+			continue;
+		    }
+		    List< Task > tasks;
+		    try {
+			tasks = prepareTasks( makeTasks( message ) );
+		    } catch ( RuntimeException e ) {
+			e.printStackTrace();
+			System.err.println( e );
+			// stop extending it, so that it comes back later
+			giveUpOnFile( new Task( message ) );
+			continue;
+		    }
+		    for( Task task : tasks ) {
+			put( downloaded, task );
+		    }
+		}
+	    }
+	};
+    }
+
+    protected Runnable makeAnalyzer() {
+	return new Runnable() {
+	    public void run() {
+		int batchSize = getParameters().getBatchSize();
+		boolean shouldRun = true;
+		while ( shouldRun ) {
+		    List< Task > batch = takeBatch( downloaded, batchSize );
+		    shouldRun = !batch.remove( END_OF_STAGE );
+		    for( Task task : analyzeBatch( batch ) ) {
+			put( analyzed, task );
+		    }
+		}
+	    }
+	};
+    }
+
+    protected Runnable makeUploader() {
+	return new Runnable() {
+	    public void run() {
+		Task task;
+		while ( ( task = take( analyzed ) ) != END_OF_STAGE ) {
+		    try {
+			uploadOutput( task );
+			recordResult( task );
+			doneWithFile( task );
+		    } catch ( IOException e ) {
+			failed( task, e );
+		    } catch ( RuntimeException e ) {
+			failed( task, e );
+		    }
+		}
+	    }
+	};
+    }
+
+    /**
+     * Starts the given number of threads running the given stage.
+     */
+    protected static ExecutorService startStage( Runnable stage,
+						 int numThreads ) {
+	ExecutorService retval = Executors.newFixedThreadPool( numThreads );
+	for( int x = 0; x < numThreads; x++ ) {
+	    retval.submit( stage );
+	}
+	retval.shutdown();
+	return retval;
+    }
+
+    /**
+     * Waits for all the threads of the given stage to finish, and then
+     * tells the given number of threads in the next stage that nothing
+     * more is coming.
+     */
+    protected static void finishStage( ExecutorService stage,
+				       BlockingQueue< Task > next,
+				       int numNextThreads ) {
+	try {
+	    stage.awaitTermination( Long.MAX_VALUE,
+				    TimeUnit.SECONDS );
+	} catch ( InterruptedException e ) {}
+	for( int x = 0; x < numNextThreads; x++ ) {
+	    put( next, END_OF_STAGE );
+	}
+    }
+
+    public void processFiles() {
+	int numDownloaders = getParameters().getDownloadThreads();
+	int numUploaders = getParameters().getUploadThreads();
+	ExecutorService downloaders = startStage( makeDownloader(), numDownloaders );
+	ExecutorService analyzers = startStage( makeAnalyzer(), numThreads );
+	ExecutorService uploaders = startStage( makeUploader(), numUploaders );
+
+	finishStage( downloaders, downloaded, numThreads );
+	finishStage( analyzers, analyzed, numUploaders );
+	try {
+	    uploaders.awaitTermination( Long.MAX_VALUE,
+					TimeUnit.SECONDS );
+	} catch ( InterruptedException e ) {}
+    }
+}
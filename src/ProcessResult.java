@@ -0,0 +1,54 @@
+/**
+ * What came of running a program with <code>JobControl.run</code>.
+ * Only the ends of stdout and stderr are kept.
+ */
+public class ProcessResult {
+    // begin instance variables
+    private final int exitCode;
+    private final TailBuffer stdout;
+    private final TailBuffer stderr;
+    private final boolean timedOut;
+    // end instance variables
+
+    public ProcessResult( int exitCode,
+			  TailBuffer stdout,
+			  TailBuffer stderr,
+			  boolean timedOut ) {
+	this.exitCode = exitCode;
+	this.stdout = stdout;
+	this.stderr = stderr;
+	this.timedOut = timedOut;
+    }
+
+    public int getExitCode() {
+	return exitCode;
+    }
+
+    public String getStdout() {
+	return stdout.toString();
+    }
+
+    /**
+     * Whether or not the beginning of stdout was dropped.
+     */
+    public boolean isStdoutTruncated() {
+	return stdout.isTruncated();
+    }
+
+    public String getStderr() {
+	return stderr.toString();
+    }
+
+    /**
+     * Whether or not the program was killed for running too long.
+     */
+    public boolean isTimedOut() {
+	return timedOut;
+    }
+
+    public String toString() {
+	return "exit code " + exitCode +
+	    ( timedOut ? " (timed out)" : "" ) +
+	    "; stderr ends with: " + getStderr();
+    }
+}
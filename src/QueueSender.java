@@ -0,0 +1,318 @@
+import com.amazonaws.*;
+import com.amazonaws.services.sqs.model.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Sends messages to a queue from a pool of threads, coalescing them into
+ * batch sends of up to <code>AWSParameters.MAX_NUMBER_MESSAGES</code>.
+ * If there are several queues, such as the shards of a sharded queue,
+ * each has its own share of the threads, and messages go to the queue
+ * in their request (or the first, if they don't name one).
+ * Only a few batches' worth of messages are held at once; whoever is
+ * sending blocks until the threads catch up, so memory use doesn't
+ * depend on how many messages there are.
+ * Entries that fail are retried with backoff, up to
+ * <code>MAX_ATTEMPTS</code> times, after which they are given up on.
+ * How many files have been sent, and how quickly, is reported every
+ * <code>REPORT_SECONDS</code>.
+ */
+public class QueueSender {
+    // begin constants
+    // the most bytes SQS takes in a single batch send
+    public static final int MAX_BATCH_BYTES = 1024 * 256;
+    public static final int MAX_ATTEMPTS = 5;
+    public static final int BACKOFF_MILLISECONDS = 100;
+    public static final int LINGER_MILLISECONDS = 200;
+    public static final int REPORT_SECONDS = 10;
+    // how many batches' worth of messages to hold per thread
+    public static final int PENDING_BATCHES = 4;
+    // end constants
+
+    /**
+     * A message waiting to be sent.
+     */
+    protected static class Outgoing {
+	// begin instance variables
+	public final SendMessageRequest request;
+	public final int numFiles;
+	public final Runnable whenSent;
+	public final Runnable whenFailed;
+	// end instance variables
+
+	public Outgoing( SendMessageRequest request,
+			 int numFiles,
+			 Runnable whenSent,
+			 Runnable whenFailed ) {
+	    this.request = request;
+	    this.numFiles = numFiles;
+	    this.whenSent = whenSent;
+	    this.whenFailed = whenFailed;
+	}
+
+	/**
+	 * Records that this message was given up on.
+	 */
+	public void failed( AtomicLong numFilesFailed ) {
+	    numFilesFailed.addAndGet( numFiles );
+	    if ( whenFailed != null ) {
+		whenFailed.run();
+	    }
+	}
+    }
+
+    // begin instance variables
+    private final AWSParameters parameters;
+    private final List< String > queueURLs;
+    // messages to send to each queue, with how many files each is for
+    private final List< BlockingQueue< Outgoing > > pending;
+    private final List< Thread > threads;
+    private final ScheduledExecutorService reporter;
+    private final AtomicLong numFilesSent;
+    private final AtomicLong numFilesFailed;
+    private final long startTime;
+    private volatile boolean shouldRun;
+    // end instance variables
+
+    public QueueSender( AWSParameters parameters,
+			String queueURL ) {
+	this( parameters, Collections.singletonList( queueURL ) );
+    }
+
+    public QueueSender( AWSParameters parameters,
+			List< String > queueURLs ) {
+	this.parameters = parameters;
+	this.queueURLs = new ArrayList< String >( queueURLs );
+	// at least one thread per queue
+	int threadsPerQueue = 
+	    Math.max( 1, parameters.getEnqueueThreads() / queueURLs.size() );
+	pending = new ArrayList< BlockingQueue< Outgoing > >();
+	for( int x = 0; x < queueURLs.size(); x++ ) {
+	    pending.add( new ArrayBlockingQueue< Outgoing >( threadsPerQueue *
+							    PENDING_BATCHES *
+							    AWSParameters.MAX_NUMBER_MESSAGES ) );
+	}
+	numFilesSent = new AtomicLong( 0 );
+	numFilesFailed = new AtomicLong( 0 );
+	startTime = System.currentTimeMillis();
+	shouldRun = true;
+	threads = new ArrayList< Thread >();
+	for( int x = 0; x < queueURLs.size(); x++ ) {
+	    final String queueURL = queueURLs.get( x );
+	    final BlockingQueue< Outgoing > queuePending = pending.get( x );
+	    for( int y = 0; y < threadsPerQueue; y++ ) {
+		Thread thread = new Thread( new Runnable() {
+			public void run() {
+			    sendUntilShutdown( queueURL, queuePending );
+			}
+		    } );
+		thread.setDaemon( true );
+		thread.start();
+		threads.add( thread );
+	    }
+	}
+	reporter = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+		public Thread newThread( Runnable runnable ) {
+		    Thread retval = new Thread( runnable );
+		    retval.setDaemon( true );
+		    return retval;
+		}
+	    } );
+	reporter.scheduleAtFixedRate( new Runnable() {
+		public void run() {
+		    report();
+		}
+	    },
+	    REPORT_SECONDS,
+	    REPORT_SECONDS,
+	    TimeUnit.SECONDS );
+    }
+
+    /**
+     * Queues up the given message, which is for the given number of
+     * files, to be sent.  Blocks if too many are already queued up.
+     * Once the message has been sent, or given up on, the matching
+     * callback (if any) is run on one of the sending threads.
+     */
+    public void send( SendMessageRequest request,
+		      int numFiles,
+		      Runnable whenSent,
+		      Runnable whenFailed ) throws InterruptedException {
+	int queue = ( request.getQueueUrl() == null ) ? 
+	    0 : queueURLs.indexOf( request.getQueueUrl() );
+	if ( queue < 0 ) {
+	    throw new IllegalArgumentException( "Not a queue of this sender: " +
+						request.getQueueUrl() );
+	}
+	pending.get( queue ).put( new Outgoing( request,
+						numFiles,
+						whenSent,
+						whenFailed ) );
+    }
+
+    public void send( SendMessageRequest request,
+		      int numFiles ) throws InterruptedException {
+	send( request, numFiles, null, null );
+    }
+
+    /**
+     * Gets roughly how many bytes the given message counts as towards
+     * the batch limit.
+     */
+    public static int messageBytes( SendMessageRequest request ) {
+	int retval = utf8Length( request.getMessageBody() );
+	for( Map.Entry< String, MessageAttributeValue > entry : 
+		 request.getMessageAttributes().entrySet() ) {
+	    retval += utf8Length( entry.getKey() ) +
+		utf8Length( entry.getValue().getDataType() ) +
+		utf8Length( entry.getValue().getStringValue() );
+	}
+	return retval;
+    }
+
+    protected static int utf8Length( String text ) {
+	try {
+	    return ( text == null ) ? 0 : text.getBytes( "UTF-8" ).length;
+	} catch ( UnsupportedEncodingException e ) {
+	    // every JVM has UTF-8
+	    throw new RuntimeException( e );
+	}
+    }
+
+    /**
+     * Sends the messages that come in on the given pending queue to the
+     * queue with the given URL, until shut down.
+     */
+    protected void sendUntilShutdown( String queueURL,
+				      BlockingQueue< Outgoing > pending ) {
+	// didn't fit in the last batch
+	Outgoing leftover = null;
+	while ( shouldRun || leftover != null || !pending.isEmpty() ) {
+	    List< Outgoing > batch = new ArrayList< Outgoing >();
+	    int batchBytes = 0;
+	    try {
+		Outgoing next = leftover;
+		leftover = null;
+		if ( next == null ) {
+		    next = pending.poll( LINGER_MILLISECONDS,
+					 TimeUnit.MILLISECONDS );
+		}
+		while ( next != null ) {
+		    int bytes = messageBytes( next.request );
+		    if ( !batch.isEmpty() && batchBytes + bytes > MAX_BATCH_BYTES ) {
+			leftover = next;
+			break;
+		    }
+		    batch.add( next );
+		    batchBytes += bytes;
+		    if ( batch.size() >= AWSParameters.MAX_NUMBER_MESSAGES ) {
+			break;
+		    }
+		    next = pending.poll();
+		}
+	    } catch ( InterruptedException e ) {}
+	    if ( !batch.isEmpty() ) {
+		sendBatch( queueURL, batch );
+	    }
+	}
+    }
+
+    /**
+     * Sends the given messages to the queue with the given URL, retrying
+     * those that fail.
+     */
+    protected void sendBatch( String queueURL,
+			      List< Outgoing > batch ) {
+	List< Outgoing > remaining = batch;
+	String lastError = null;
+	for( int attempt = 0; 
+	     attempt < MAX_ATTEMPTS && !remaining.isEmpty();
+	     attempt++ ) {
+	    if ( attempt > 0 ) {
+		try {
+		    Thread.sleep( BACKOFF_MILLISECONDS << attempt );
+		} catch ( InterruptedException e ) {}
+	    }
+	    List< SendMessageBatchRequestEntry > entries =
+		new ArrayList< SendMessageBatchRequestEntry >();
+	    for( int x = 0; x < remaining.size(); x++ ) {
+		SendMessageRequest request = remaining.get( x ).request;
+		entries.add( new SendMessageBatchRequestEntry( Integer.toString( x ),
+							       request.getMessageBody() )
+			     .withMessageAttributes( request.getMessageAttributes() ) );
+	    }
+	    List< Outgoing > failed = new ArrayList< Outgoing >();
+	    try {
+		SendMessageBatchResult result = 
+		    parameters.getSQS().sendMessageBatch( new SendMessageBatchRequest( queueURL,
+										      entries ) );
+		for( BatchResultErrorEntry error : result.getFailed() ) {
+		    Outgoing message = remaining.get( Integer.parseInt( error.getId() ) );
+		    lastError = error.getCode() + ": " + error.getMessage();
+		    if ( error.isSenderFault() ) {
+			// won't go through no matter how many times we try
+			System.err.println( "Could not send " + 
+					    message.request.getMessageBody() + 
+					    ": " + lastError );
+			message.failed( numFilesFailed );
+		    } else {
+			failed.add( message );
+		    }
+		}
+		for( SendMessageBatchResultEntry entry : result.getSuccessful() ) {
+		    Outgoing message = remaining.get( Integer.parseInt( entry.getId() ) );
+		    numFilesSent.addAndGet( message.numFiles );
+		    if ( message.whenSent != null ) {
+			message.whenSent.run();
+		    }
+		}
+	    } catch ( AmazonClientException e ) {
+		lastError = e.toString();
+		failed = remaining;
+	    }
+	    remaining = failed;
+	}
+
+	for( Outgoing message : remaining ) {
+	    System.err.println( "Gave up sending " + 
+				message.request.getMessageBody() +
+				": " + lastError );
+	    message.failed( numFilesFailed );
+	}
+    }
+
+    public long getNumFilesSent() {
+	return numFilesSent.get();
+    }
+
+    public long getNumFilesFailed() {
+	return numFilesFailed.get();
+    }
+
+    protected void report() {
+	double seconds = 
+	    Math.max( 1, System.currentTimeMillis() - startTime ) / 1000.0;
+	System.err.println( "Enqueued " + getNumFilesSent() + " files (" +
+			    Math.round( getNumFilesSent() / seconds ) + 
+			    " files/second)" );
+    }
+
+    /**
+     * Sends everything still pending, and then stops.
+     * @return The number of files that could not be sent
+     */
+    public long shutdown() {
+	shouldRun = false;
+	for( Thread thread : threads ) {
+	    try {
+		thread.join();
+	    } catch ( InterruptedException e ) {}
+	}
+	reporter.shutdownNow();
+	report();
+	return getNumFilesFailed();
+    }
+}
@@ -0,0 +1,189 @@
+import com.amazonaws.*;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Downloads a single large object as several byte ranges at once.
+ * A single GET is limited to the throughput of a single connection.
+ * Each range is written straight into its place in a preallocated
+ * local file, and is checked and retried on its own.  All ranges must
+ * come from the same version of the object, as identified by its ETag.
+ * Ranges run on the shared transfer threads of
+ * <code>AWSParameters</code>.
+ */
+public class RangedDownload {
+    // begin constants
+    public static final int BUFFER_SIZE = 1024 * 64;
+    // end constants
+
+    // begin instance variables
+    private final AWSParameters parameters;
+    private final String bucket;
+    private final String key;
+    private final String eTag;
+    private final long size;
+    // end instance variables
+
+    public RangedDownload( AWSParameters parameters,
+			   String bucket,
+			   String key,
+			   String eTag,
+			   long size ) {
+	this.parameters = parameters;
+	this.bucket = bucket;
+	this.key = key;
+	this.eTag = eTag;
+	this.size = size;
+    }
+
+    public RangedDownload( AWSParameters parameters,
+			   String bucket,
+			   String key,
+			   ObjectMetadata metadata ) {
+	this( parameters,
+	      bucket,
+	      key,
+	      metadata.getETag(),
+	      metadata.getContentLength() );
+    }
+
+    /**
+     * Downloads the bytes from start to end (inclusive) into the
+     * same place in the given channel, with no retries.
+     */
+    protected void downloadRangeNoRetry( FileChannel channel,
+					 long start,
+					 long end ) throws IOException {
+	GetObjectRequest request = 
+	    new GetObjectRequest( bucket, key )
+	    .withRange( start, end )
+	    .withMatchingETagConstraint( eTag );
+	S3Object object;
+	try {
+	    object = parameters.getS3().getObject( request );
+	} catch ( AmazonServiceException e ) {
+	    if ( AWSParameters.isPreconditionFailed( e ) ) {
+		throw new ObjectChangedException( key );
+	    }
+	    throw e;
+	}
+	if ( object == null ) {
+	    throw new ObjectChangedException( key );
+	}
+
+	InputStream input = object.getObjectContent();
+	try {
+	    byte[] buffer = new byte[ BUFFER_SIZE ];
+	    long position = start;
+	    int numRead;
+	    while ( ( numRead = input.read( buffer ) ) != -1 ) {
+		ByteBuffer wrapped = ByteBuffer.wrap( buffer, 0, numRead );
+		while ( wrapped.hasRemaining() ) {
+		    position += channel.write( wrapped, position );
+		}
+	    }
+	    if ( position != end + 1 ) {
+		throw new IOException( "Expected " + ( end - start + 1 ) +
+				       " bytes of " + key + " starting at " + start +
+				       " but got " + ( position - start ) );
+	    }
+	} finally {
+	    input.close();
+	}
+    }
+
+    /**
+     * Downloads the bytes from start to end (inclusive) into the same
+     * place in the given channel, retrying with a backoff.
+     * A change to the object isn't retried, since it won't go away.
+     */
+    protected void downloadRange( FileChannel channel,
+				  long start,
+				  long end ) throws IOException {
+	int seconds = AWSParameters.START_SECONDS_TO_RETRY;
+	for( int x = 1; ; x++ ) {
+	    try {
+		downloadRangeNoRetry( channel, start, end );
+		return;
+	    } catch ( ObjectChangedException e ) {
+		throw e;
+	    } catch ( IOException e ) {
+		if ( x >= AWSParameters.NUM_RETRIES ) {
+		    throw e;
+		}
+	    } catch ( AmazonClientException e ) {
+		if ( x >= AWSParameters.NUM_RETRIES ) {
+		    throw new IOException( e );
+		}
+	    }
+	    try {
+		Thread.sleep( seconds * 1000L );
+	    } catch ( InterruptedException e ) {
+		throw new IOException( "Interrupted while downloading " + key );
+	    }
+	    seconds *= 2;
+	}
+    }
+
+    /**
+     * Downloads the whole object to the given file, in the given
+     * number of ranges.
+     */
+    public void download( File localFile, int numRanges ) throws IOException {
+	long rangeSize = ( size + numRanges - 1 ) / numRanges;
+	RandomAccessFile file = new RandomAccessFile( localFile, "rw" );
+	try {
+	    file.setLength( size );
+	    final FileChannel channel = file.getChannel();
+	    List< Future< Void > > ranges = new ArrayList< Future< Void > >();
+	    for( long start = 0; start < size; start += rangeSize ) {
+		final long rangeStart = start;
+		final long rangeEnd = Math.min( size, start + rangeSize ) - 1;
+		ranges.add( parameters.getTransferExecutor().submit( new Callable< Void >() {
+			public Void call() throws IOException {
+			    downloadRange( channel, rangeStart, rangeEnd );
+			    return null;
+			}
+		    } ) );
+	    }
+	    awaitAll( ranges, "download of " + key );
+	} finally {
+	    file.close();
+	}
+    }
+
+    /**
+     * Waits for all the given transfers to finish.  If any of them
+     * fails, the rest are cancelled and the first failure is thrown.
+     */
+    public static void awaitAll( List< Future< Void > > transfers,
+				 String what ) throws IOException {
+	try {
+	    for( Future< Void > transfer : transfers ) {
+		transfer.get();
+	    }
+	} catch ( ExecutionException e ) {
+	    for( Future< Void > transfer : transfers ) {
+		transfer.cancel( true );
+	    }
+	    Throwable cause = e.getCause();
+	    if ( cause instanceof IOException ) {
+		throw (IOException)cause;
+	    } else if ( cause instanceof RuntimeException ) {
+		throw (RuntimeException)cause;
+	    } else {
+		throw new IOException( cause );
+	    }
+	} catch ( InterruptedException e ) {
+	    for( Future< Void > transfer : transfers ) {
+		transfer.cancel( true );
+	    }
+	    throw new IOException( "Interrupted during " + what );
+	}
+    }
+}
@@ -0,0 +1,213 @@
+import com.amazonaws.*;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+
+/**
+ * Remembers what the analysis produced for each input, so that a rerun
+ * doesn't analyze inputs whose results can't have changed.
+ * Results are keyed by a digest of the input's name and ETag, the
+ * environment zip's ETag, the analysis program, and the output mode.
+ * The index lives in the environment bucket, one small object per
+ * result holding the bucket, key, ETag, and size of the output, or
+ * nothing if there was no output.  On a hit, the earlier output is
+ * copied into the output bucket within S3, so nothing is downloaded or
+ * analyzed.  Outputs too big for a single copy are copied in parts.
+ * Problems with the index are only reported, since the worst that can
+ * come of them is analyzing an input again.
+ */
+public class ResultMemo {
+    // begin constants
+    public static final String RESULT_INDEX_PREFIX = "result-index/";
+    // end constants
+
+    // begin instance variables
+    private final AWSParameters parameters;
+    private String environmentETag;
+    // end instance variables
+
+    public ResultMemo( AWSParameters parameters ) {
+	this.parameters = parameters;
+	environmentETag = null;
+    }
+
+    protected synchronized String getEnvironmentETag() {
+	if ( environmentETag == null ) {
+	    environmentETag =
+		parameters.getS3().getObjectMetadata( parameters.getEnvironmentBucket(),
+						      parameters.getEnvironmentZip() )
+		.getETag();
+	}
+	return environmentETag;
+    }
+
+    protected static void report( Exception e ) {
+	System.err.println( "Problem with the result index: " + e );
+    }
+
+    /**
+     * Gets the key of the index entry for the given input file.
+     * Returns null if it couldn't be determined.
+     */
+    public String indexKey( String fileName ) {
+	return indexKey( fileName, null );
+    }
+
+    /**
+     * Gets the key of the index entry for the input file of the given
+     * task, using the ETag that came with it if there is one.
+     * Otherwise the ETag is looked up and kept with the task, so that
+     * the same version of the file is downloaded.
+     */
+    public String indexKey( Task task ) {
+	try {
+	    parameters.lookUpMetadata( task );
+	} catch ( AmazonClientException e ) {
+	    report( e );
+	    return null;
+	}
+	return indexKey( task.getFileName(), task.getETag() );
+    }
+
+    protected String indexKey( String fileName,
+			       String inputETag ) {
+	try {
+	    if ( inputETag == null ) {
+		inputETag =
+		    parameters.getS3().getObjectMetadata( parameters.getInputBucket(),
+							  fileName )
+		    .getETag();
+	    }
+	    return RESULT_INDEX_PREFIX +
+		InputCache.hexDigest( "SHA-256",
+				      parameters.getInputBucket() + "\n" +
+				      fileName + "\n" +
+				      inputETag + "\n" +
+				      getEnvironmentETag() + "\n" +
+				      parameters.getAnalysisProgramName() + "\n" +
+				      parameters.isStdoutObjectOutputMode() );
+	} catch ( AmazonClientException e ) {
+	    report( e );
+	    return null;
+	}
+    }
+
+    /**
+     * Reads the index entry with the given key.
+     * Returns null if there is no such entry.
+     */
+    protected String readEntry( String indexKey ) throws IOException {
+	S3Object object;
+	try {
+	    object = parameters.getS3().getObject( parameters.getEnvironmentBucket(),
+						   indexKey );
+	} catch ( AmazonServiceException e ) {
+	    if ( AWSParameters.isNoSuchKey( e ) ) {
+		return null;
+	    }
+	    throw e;
+	}
+	InputStream input = object.getObjectContent();
+	try {
+	    ByteArrayOutputStream retval = new ByteArrayOutputStream();
+	    JobControl.copy( input, retval );
+	    return retval.toString( "UTF-8" );
+	} finally {
+	    input.close();
+	}
+    }
+
+    /**
+     * Puts the output recorded under the given index key in the output
+     * bucket, if it is still around.
+     * Returns true if it was, in which case the input doesn't need to be
+     * analyzed.
+     */
+    public boolean reuse( String indexKey ) {
+	try {
+	    String entry = readEntry( indexKey );
+	    if ( entry == null ) {
+		return false;
+	    } else if ( entry.equals( "" ) ) {
+		// there was no output last time either
+		return true;
+	    }
+	    String[] parts = entry.split( "\n" );
+	    String bucket = parts[ 0 ];
+	    String key = parts[ 1 ];
+	    String eTag = parts[ 2 ];
+	    String outputBucket = parameters.getOutputBucket();
+	    if ( bucket.equals( outputBucket ) ) {
+		// already in place, unless something else wrote over it
+		return eTag.equals( parameters.getS3()
+				    .getObjectMetadata( bucket, key )
+				    .getETag() );
+	    }
+	    long size = Long.parseLong( parts[ 3 ] );
+	    if ( size > MultipartUpload.MAX_COPY_SIZE ) {
+		MultipartUpload.copyObject( parameters,
+					    bucket,
+					    key,
+					    eTag,
+					    size,
+					    outputBucket,
+					    key );
+		return true;
+	    }
+	    return parameters.getS3()
+		.copyObject( new CopyObjectRequest( bucket,
+						    key,
+						    outputBucket,
+						    key )
+			     .withMatchingETagConstraint( eTag ) ) != null;
+	} catch ( AmazonServiceException e ) {
+	    if ( !AWSParameters.isNoSuchKey( e ) ) {
+		report( e );
+	    }
+	} catch ( AmazonClientException e ) {
+	    report( e );
+	} catch ( IOException e ) {
+	    report( e );
+	} catch ( ArrayIndexOutOfBoundsException e ) {
+	    System.err.println( "Malformed entry in the result index: " + indexKey );
+	} catch ( NumberFormatException e ) {
+	    System.err.println( "Malformed entry in the result index: " + indexKey );
+	}
+	return false;
+    }
+
+    /**
+     * Records that the input with the given index key produced the
+     * output with the given key in the output bucket.
+     * The output key is null if there was no output.
+     */
+    public void record( String indexKey,
+			String outputKey ) {
+	try {
+	    String entry = "";
+	    if ( outputKey != null ) {
+		String outputBucket = parameters.getOutputBucket();
+		ObjectMetadata output = 
+		    parameters.getS3().getObjectMetadata( outputBucket,
+							  outputKey );
+		entry =
+		    outputBucket + "\n" +
+		    outputKey + "\n" +
+		    output.getETag() + "\n" +
+		    output.getContentLength();
+	    }
+	    byte[] bytes = entry.getBytes( "UTF-8" );
+	    ObjectMetadata metadata = new ObjectMetadata();
+	    metadata.setContentLength( bytes.length );
+	    parameters.getS3().putObject( parameters.getEnvironmentBucket(),
+					  indexKey,
+					  new ByteArrayInputStream( bytes ),
+					  metadata );
+	} catch ( AmazonClientException e ) {
+	    report( e );
+	} catch ( UnsupportedEncodingException e ) {
+	    // every JVM has UTF-8
+	    throw new RuntimeException( e );
+	}
+    }
+}
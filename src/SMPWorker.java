@@ -5,6 +5,12 @@ public class SMPWorker extends Worker {
     // begin instance variables
     private final int numThreads;
     private final ExecutorService executor;
+    // null unless the number of threads is automatic
+    private final ConcurrencyController controller;
+    // which worker loops are running, by slot
+    private final boolean[] running;
+    private int targetNumThreads;
+    private boolean queueDrained;
    // end instance variables
 
     public SMPWorker( AWSParameters parameters ) throws IOException {
@@ -16,30 +22,113 @@ public class SMPWorker extends Worker {
 		      int numThreads ) throws IOException {
 	super( parameters );
 	this.numThreads = numThreads;
-	executor = Executors.newFixedThreadPool( numThreads );
+	targetNumThreads = numThreads;
+	queueDrained = false;
+	if ( parameters.isAutoNumThreads() ) {
+	    controller = new ConcurrencyController( this, numThreads );
+	    running = new boolean[ controller.getMaxThreads() ];
+	    executor = Executors.newCachedThreadPool();
+	} else {
+	    controller = null;
+	    running = new boolean[ numThreads ];
+	    executor = Executors.newFixedThreadPool( numThreads );
+	}
     }
 
-    protected Runnable makeWorker() {
+    /**
+     * Makes a worker loop for the given slot.  The loop stops once its
+     * slot is at or beyond the target number of threads.
+     */
+    protected Runnable makeWorker( final int slot ) {
 	final Worker parent = this;
 	return new Runnable() {
 	    public void run() {
+		boolean drained = false;
 		try {
-		    new SequentialWorker( parent.getParameters() ).processFiles();
+		    SequentialWorker worker = new SequentialWorker( parent ) {
+			    protected boolean shouldContinue() {
+				return isSlotWanted( slot );
+			    }
+			};
+		    worker.processFiles();
+		    drained = worker.sawDrainedQueue();
 		} catch ( IOException e ) {
 		    e.printStackTrace();
 		    System.err.println( e.toString() );
 		    System.err.println( "Failed to make sequential worker." );
+		} finally {
+		    loopFinished( slot, drained );
 		}
 	    }
 	};
     }
 
+    protected synchronized boolean isSlotWanted( int slot ) {
+	return slot < targetNumThreads;
+    }
+
+    /**
+     * Starts loops for all wanted slots that aren't running.
+     */
+    protected synchronized void startWantedLoops() {
+	for( int slot = 0; slot < targetNumThreads && !queueDrained; slot++ ) {
+	    if ( !running[ slot ] ) {
+		running[ slot ] = true;
+		executor.submit( makeWorker( slot ) );
+	    }
+	}
+    }
+
+    protected synchronized void loopFinished( int slot, boolean drained ) {
+	running[ slot ] = false;
+	queueDrained = queueDrained || drained;
+	notifyAll();
+    }
+
+    protected synchronized boolean anyLoopsRunning() {
+	for( boolean current : running ) {
+	    if ( current ) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Changes how many files we process at once, along with how many
+     * messages are received ahead of time for them.  Loops beyond the
+     * target stop after their current file.
+     */
+    public synchronized void setTargetNumThreads( int target ) {
+	targetNumThreads = Math.max( 1, Math.min( running.length, target ) );
+	getMessageBuffer().setCapacity( getParameters().getPrefetchSize( targetNumThreads ) );
+	startWantedLoops();
+    }
+
+    /**
+     * Waits until all loops have stopped.
+     * Slot 0 is always wanted, so its loop only stops once the queue
+     * is drained.
+     */
+    protected synchronized void awaitLoops() {
+	while ( anyLoopsRunning() ) {
+	    try {
+		wait();
+	    } catch ( InterruptedException e ) {}
+	}
+    }
+
     public void processFiles() {
-	for( int x = 0; x < numThreads; x++ ) {
-	    executor.submit( makeWorker() );
+	startWantedLoops();
+	if ( controller != null ) {
+	    controller.start();
+	}
+	awaitLoops();
+	if ( controller != null ) {
+	    controller.shutdown();
 	}
+	executor.shutdown();
 	try {
-	    executor.shutdown();
 	    executor.awaitTermination( Long.MAX_VALUE,
 				       TimeUnit.SECONDS );
 	} catch ( InterruptedException e ) {}
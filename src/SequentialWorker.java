@@ -3,18 +3,59 @@ import com.amazonaws.services.sqs.model.*;
 import java.io.*;
 
 public class SequentialWorker extends Worker {
+    // begin instance variables
+    private boolean sawDrainedQueue;
+    // end instance variables
+
     /**
      * Creates a worker that uses the given parameters.
      */
     public SequentialWorker( AWSParameters parameters ) throws IOException {
 	super( parameters );
+	sawDrainedQueue = false;
+    }
+
+    /**
+     * Creates a worker that shares the resources of the given worker.
+     */
+    public SequentialWorker( Worker parent ) throws IOException {
+	super( parent );
+	sawDrainedQueue = false;
     }
 
+    /**
+     * Checked before each file.  Once this returns false, we stop
+     * processing files even if there are more.
+     */
+    protected boolean shouldContinue() {
+	return true;
+    }
+
+    /**
+     * Whether or not we stopped processing files because the queue
+     * was drained, as opposed to <code>shouldContinue</code> saying so.
+     */
+    public boolean sawDrainedQueue() {
+	return sawDrainedQueue;
+    }
+
+    /**
+     * Processes files until the queue is drained, or until
+     * <code>shouldContinue</code> says to stop.
+     */
     public void processFiles() {
-	Message nextFile;
+	EmptyQueueDetector detector = new EmptyQueueDetector( getParameters(),
+							      getMessageBuffer() );
+	boolean shouldRun = true;
 
-	while( ( nextFile = nextFile() ) != null ) {
-	    new VisibilityTimeoutRunnable( this, nextFile ).run();
+	while( shouldRun && shouldContinue() ) {
+	    Message nextFile = nextFile();
+	    if ( nextFile != null ) {
+		new VisibilityTimeoutRunnable( this, nextBatch( nextFile ) ).run();
+	    } else {
+		sawDrainedQueue = detector.gotNothing();
+		shouldRun = !sawDrainedQueue;
+	    }
 	}
     }
 }
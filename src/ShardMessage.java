@@ -0,0 +1,29 @@
+import com.amazonaws.services.sqs.model.*;
+
+/**
+ * A received message, along with the URL of the shard of the queue it
+ * came from, so that it can be deleted from it and have its visibility
+ * changed there.
+ * SQS's own attributes of the message are left as they came.
+ */
+public class ShardMessage extends Message {
+    // begin instance variables
+    private final String queueURL;
+    // end instance variables
+
+    public ShardMessage( Message message,
+			 String queueURL ) {
+	this.queueURL = queueURL;
+	setMessageId( message.getMessageId() );
+	setReceiptHandle( message.getReceiptHandle() );
+	setMD5OfBody( message.getMD5OfBody() );
+	setBody( message.getBody() );
+	setAttributes( message.getAttributes() );
+	setMD5OfMessageAttributes( message.getMD5OfMessageAttributes() );
+	setMessageAttributes( message.getMessageAttributes() );
+    }
+
+    public String getQueueUrl() {
+	return queueURL;
+    }
+}
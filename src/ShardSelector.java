@@ -0,0 +1,74 @@
+import java.util.*;
+
+/**
+ * Picks which shards of the queue a worker receives from.
+ * Shards are tried round-robin, starting from a random one so that
+ * workers don't all start on the same shard.  A shard that came back
+ * empty is skipped for a while, twice as long each time it stays
+ * empty, up to <code>MAX_BACKOFF_MILLISECONDS</code>.  If every shard
+ * is being skipped, the one that will be tried again soonest is tried
+ * anyway, so there is always somewhere to wait for messages.
+ * Not thread-safe.
+ */
+public class ShardSelector {
+    // begin constants
+    public static final long MIN_BACKOFF_MILLISECONDS = 1000;
+    public static final long MAX_BACKOFF_MILLISECONDS = 1000 * 60;
+    // end constants
+
+    // begin instance variables
+    private final List< String > shards;
+    // when each shard can be tried again
+    private final long[] skipUntil;
+    // how long each shard was last skipped for, or 0 if it wasn't empty
+    private final long[] backoff;
+    private int next;
+    // end instance variables
+
+    public ShardSelector( List< String > shards ) {
+	this.shards = new ArrayList< String >( shards );
+	skipUntil = new long[ shards.size() ];
+	backoff = new long[ shards.size() ];
+	next = new Random().nextInt( shards.size() );
+    }
+
+    /**
+     * Gets the shards to try, in the order to try them.
+     * There is always at least one.
+     */
+    public List< String > order() {
+	long now = System.currentTimeMillis();
+	List< String > retval = new ArrayList< String >();
+	int soonest = next;
+	for( int x = 0; x < shards.size(); x++ ) {
+	    int shard = ( next + x ) % shards.size();
+	    if ( skipUntil[ shard ] <= now ) {
+		retval.add( shards.get( shard ) );
+	    } else if ( skipUntil[ shard ] < skipUntil[ soonest ] ) {
+		soonest = shard;
+	    }
+	}
+	if ( retval.isEmpty() ) {
+	    retval.add( shards.get( soonest ) );
+	}
+	next = ( next + 1 ) % shards.size();
+	return retval;
+    }
+
+    /**
+     * Notes whether or not the given shard had any messages.
+     */
+    public void received( String shard,
+			  boolean empty ) {
+	int index = shards.indexOf( shard );
+	if ( empty ) {
+	    backoff[ index ] = Math.min( MAX_BACKOFF_MILLISECONDS,
+					 Math.max( MIN_BACKOFF_MILLISECONDS,
+						   backoff[ index ] * 2 ) );
+	    skipUntil[ index ] = System.currentTimeMillis() + backoff[ index ];
+	} else {
+	    backoff[ index ] = 0;
+	    skipUntil[ index ] = 0;
+	}
+    }
+}
@@ -0,0 +1,178 @@
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorts files from largest to smallest, spilling to disk if there are
+ * too many to hold.
+ * Files are held <code>RUN_LENGTH</code> at a time, and each full run is
+ * sorted and written to a temporary file.  The runs are then merged,
+ * so only the head of each run is held while merging.
+ * Only the name and size of each file are kept.
+ */
+public class SizeSorter {
+    // begin constants
+    public static final int RUN_LENGTH = 1024 * 256;
+    public static final String TEMP_PREFIX = "sizesort";
+    // largest first, and then by name so that the order is always the same
+    public static final Comparator< S3ObjectSummary > LARGEST_FIRST =
+	new Comparator< S3ObjectSummary >() {
+	    public int compare( S3ObjectSummary first, S3ObjectSummary second ) {
+		if ( first.getSize() != second.getSize() ) {
+		    return ( first.getSize() > second.getSize() ) ? -1 : 1;
+		}
+		return first.getKey().compareTo( second.getKey() );
+	    }
+	};
+    // end constants
+
+    /**
+     * A run that was written to disk, being read back.
+     */
+    protected static class Run {
+	// begin instance variables
+	private final File file;
+	private final DataInputStream input;
+	private S3ObjectSummary head;
+	// end instance variables
+
+	public Run( File file ) throws IOException {
+	    this.file = file;
+	    input = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+	    advance();
+	}
+
+	/**
+	 * Gets the next file in the run, or null if there are no more.
+	 */
+	public S3ObjectSummary getHead() {
+	    return head;
+	}
+
+	/**
+	 * Moves on to the next file.  The run is removed once it has been
+	 * read through.
+	 */
+	public void advance() throws IOException {
+	    if ( input.readBoolean() ) {
+		head = new S3ObjectSummary();
+		head.setSize( input.readLong() );
+		head.setKey( input.readUTF() );
+		String eTag = input.readUTF();
+		head.setETag( eTag.isEmpty() ? null : eTag );
+		long lastModified = input.readLong();
+		head.setLastModified( ( lastModified < 0 ) ? null : new Date( lastModified ) );
+	    } else {
+		head = null;
+		input.close();
+		file.delete();
+	    }
+	}
+    }
+
+    protected static S3ObjectSummary copy( S3ObjectSummary summary ) {
+	S3ObjectSummary retval = new S3ObjectSummary();
+	retval.setKey( summary.getKey() );
+	retval.setSize( summary.getSize() );
+	retval.setETag( summary.getETag() );
+	retval.setLastModified( summary.getLastModified() );
+	return retval;
+    }
+
+    /**
+     * Sorts the given run and writes it to a temporary file.
+     */
+    protected static File writeRun( List< S3ObjectSummary > run ) throws IOException {
+	Collections.sort( run, LARGEST_FIRST );
+	File retval = File.createTempFile( TEMP_PREFIX, null );
+	retval.deleteOnExit();
+	DataOutputStream output = 
+	    new DataOutputStream( new BufferedOutputStream( new FileOutputStream( retval ) ) );
+	try {
+	    for( S3ObjectSummary summary : run ) {
+		output.writeBoolean( true );
+		output.writeLong( summary.getSize() );
+		output.writeUTF( summary.getKey() );
+		output.writeUTF( ( summary.getETag() == null ) ? "" : summary.getETag() );
+		output.writeLong( ( summary.getLastModified() == null ) ? -1 :
+				  summary.getLastModified().getTime() );
+	    }
+	    output.writeBoolean( false );
+	} finally {
+	    output.close();
+	}
+	return retval;
+    }
+
+    /**
+     * Goes through all of the given files, and then gives them back
+     * from largest to smallest.
+     */
+    public static Iterator< S3ObjectSummary > sort( Iterator< S3ObjectSummary > input ) 
+	throws IOException {
+	List< File > runFiles = new ArrayList< File >();
+	List< S3ObjectSummary > run = new ArrayList< S3ObjectSummary >();
+	while ( input.hasNext() ) {
+	    run.add( copy( input.next() ) );
+	    if ( run.size() == RUN_LENGTH ) {
+		runFiles.add( writeRun( run ) );
+		run = new ArrayList< S3ObjectSummary >();
+	    }
+	}
+	if ( runFiles.isEmpty() ) {
+	    // it all fit
+	    Collections.sort( run, LARGEST_FIRST );
+	    return run.iterator();
+	}
+	if ( !run.isEmpty() ) {
+	    runFiles.add( writeRun( run ) );
+	}
+	return merge( runFiles );
+    }
+
+    /**
+     * Merges the given sorted runs.
+     */
+    protected static Iterator< S3ObjectSummary > merge( List< File > runFiles ) 
+	throws IOException {
+	final PriorityQueue< Run > runs = 
+	    new PriorityQueue< Run >( runFiles.size(), new Comparator< Run >() {
+		    public int compare( Run first, Run second ) {
+			return LARGEST_FIRST.compare( first.getHead(), second.getHead() );
+		    }
+		} );
+	for( File file : runFiles ) {
+	    Run run = new Run( file );
+	    if ( run.getHead() != null ) {
+		runs.add( run );
+	    }
+	}
+	return new Iterator< S3ObjectSummary >() {
+	    public boolean hasNext() {
+		return !runs.isEmpty();
+	    }
+
+	    public S3ObjectSummary next() {
+		if ( runs.isEmpty() ) {
+		    throw new NoSuchElementException();
+		}
+		Run run = runs.poll();
+		S3ObjectSummary retval = run.getHead();
+		try {
+		    run.advance();
+		} catch ( IOException e ) {
+		    throw new RuntimeException( "Could not read back sorted files", e );
+		}
+		if ( run.getHead() != null ) {
+		    runs.add( run );
+		}
+		return retval;
+	    }
+
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+	};
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.*;
+
+/**
+ * An output stream that keeps only the last so many bytes written to
+ * it, so that capturing a chatty program's output can't use up the
+ * heap.
+ * Safe for use by multiple threads.
+ */
+public class TailBuffer extends OutputStream {
+    // begin instance variables
+    private final byte[] buffer;
+    // where the next byte goes
+    private int next;
+    private long numWritten;
+    // end instance variables
+
+    public TailBuffer( int capacity ) {
+	buffer = new byte[ capacity ];
+	next = 0;
+	numWritten = 0;
+    }
+
+    public synchronized void write( int b ) {
+	buffer[ next ] = (byte)b;
+	next = ( next + 1 ) % buffer.length;
+	numWritten++;
+    }
+
+    public synchronized void write( byte[] bytes, int offset, int length ) {
+	if ( length > buffer.length ) {
+	    // only the end of it will be kept anyway
+	    offset += length - buffer.length;
+	    numWritten += length - buffer.length;
+	    length = buffer.length;
+	}
+	int firstLength = Math.min( length, buffer.length - next );
+	System.arraycopy( bytes, offset, buffer, next, firstLength );
+	System.arraycopy( bytes, offset + firstLength, buffer, 0, length - firstLength );
+	next = ( next + length ) % buffer.length;
+	numWritten += length;
+    }
+
+    /**
+     * Whether or not some of what was written is no longer kept.
+     */
+    public synchronized boolean isTruncated() {
+	return numWritten > buffer.length;
+    }
+
+    /**
+     * Gets the bytes that are kept, oldest first.
+     */
+    public synchronized byte[] toByteArray() {
+	if ( numWritten < buffer.length ) {
+	    byte[] retval = new byte[ next ];
+	    System.arraycopy( buffer, 0, retval, 0, next );
+	    return retval;
+	}
+	byte[] retval = new byte[ buffer.length ];
+	System.arraycopy( buffer, next, retval, 0, buffer.length - next );
+	System.arraycopy( buffer, 0, retval, buffer.length - next, next );
+	return retval;
+    }
+
+    public String toString() {
+	try {
+	    return new String( toByteArray(), "UTF-8" );
+	} catch ( UnsupportedEncodingException e ) {
+	    // every JVM has UTF-8
+	    throw new RuntimeException( e );
+	}
+    }
+}
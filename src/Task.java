@@ -0,0 +1,141 @@
+import com.amazonaws.services.sqs.model.*;
+
+import java.io.*;
+
+/**
+ * A single file to process, along with the message it came from.
+ * The message may be a bundle of several files, in which case it
+ * isn't done with until all of them are.
+ * Holds onto the intermediate results as the file moves through
+ * the stages of a worker.
+ */
+public class Task {
+    // begin instance variables
+    private final Message message;
+    private final String fileName;
+    // in bytes, or -1 if not known
+    private long size;
+    // null if not known
+    private String eTag;
+    private final Bundle bundle;
+    private File inputFile;
+    private String outputFileName;
+    private String outputKey;
+    private String indexKey;
+    // end instance variables
+
+    public Task( Message message ) {
+	this( message,
+	      message.getBody(),
+	      Bundle.messageSize( message ),
+	      Bundle.messageETag( message ),
+	      null );
+    }
+
+    public Task( Message message,
+		 String fileName,
+		 long size,
+		 String eTag,
+		 Bundle bundle ) {
+	this.message = message;
+	this.fileName = fileName;
+	this.size = size;
+	this.eTag = eTag;
+	this.bundle = bundle;
+	inputFile = null;
+	outputFileName = null;
+	outputKey = null;
+	indexKey = null;
+    }
+
+    public Message getMessage() {
+	return message;
+    }
+
+    /**
+     * Gets the name of the input file, as it appears in the input bucket.
+     */
+    public String getFileName() {
+	return fileName;
+    }
+
+    /**
+     * Gets the size of the input file in bytes, or -1 if it isn't
+     * known.
+     */
+    public long getSize() {
+	return size;
+    }
+
+    /**
+     * Gets the ETag of the input file as it was when it was queued, or
+     * null if it isn't known.
+     */
+    public String getETag() {
+	return eTag;
+    }
+
+    /**
+     * Sets the ETag and size of the input file, as found in S3.
+     */
+    public void setMetadata( String eTag, long size ) {
+	this.eTag = eTag;
+	this.size = size;
+    }
+
+    /**
+     * Whether or not the ETag and size of the input file are known
+     * without asking S3.
+     */
+    public boolean hasMetadata() {
+	return eTag != null && size >= 0;
+    }
+
+    /**
+     * Gets the bundle this file came in, or null if it came in a
+     * message of its own.
+     */
+    public Bundle getBundle() {
+	return bundle;
+    }
+
+    public File getInputFile() {
+	return inputFile;
+    }
+
+    public void setInputFile( File inputFile ) {
+	this.inputFile = inputFile;
+    }
+
+    public String getOutputFileName() {
+	return outputFileName;
+    }
+
+    public void setOutputFileName( String outputFileName ) {
+	this.outputFileName = outputFileName;
+    }
+
+    /**
+     * Gets the key of the output in the output bucket, or null if
+     * nothing was uploaded.
+     */
+    public String getOutputKey() {
+	return outputKey;
+    }
+
+    public void setOutputKey( String outputKey ) {
+	this.outputKey = outputKey;
+    }
+
+    /**
+     * Gets the key of this file's entry in the result index, or null
+     * if results aren't memoized.
+     */
+    public String getIndexKey() {
+	return indexKey;
+    }
+
+    public void setIndexKey( String indexKey ) {
+	this.indexKey = indexKey;
+    }
+}
@@ -0,0 +1,214 @@
+import com.amazonaws.*;
+import com.amazonaws.services.sqs.model.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the messages of files in progress invisible to other workers.
+ * A single scheduled thread tracks every message handed out to a
+ * thread, along with when its visibility timeout runs out.  On each
+ * tick, all the messages that are about to become visible again are
+ * extended together with batch requests.
+ * The <code>maxTaskRuntime</code> parameter is enforced by killing the
+ * analysis program, after which the worker lets the message go itself.
+ * Only a message held for longer than that plus the
+ * <code>transferAllowance</code> parameter, which means that something
+ * around the analysis is stuck, is let go from here.
+ */
+public class VisibilityHeartbeat {
+    // begin constants
+    public static final int MILLISECONDS_IN_SECOND = 1000;
+    public static final int MAX_TICK_SECONDS = 30;
+    // never extend with less than this much time to spare
+    public static final int MAX_MARGIN_SECONDS = 60;
+    // end constants
+
+    // begin instance variables
+    private final AWSParameters parameters;
+    private final ScheduledExecutorService scheduler;
+    private final long tickMillis;
+    private final long marginMillis;
+    // maps receipt handles to their messages and when they will
+    // become visible again
+    private final Map< String, Pair< Message, Long > > inFlight;
+    // maps receipt handles to when their messages were received
+    private final Map< String, Long > receivedAt;
+    // how long a message can be held, in milliseconds, or 0 for no limit
+    private final long maxHoldMillis;
+    // end instance variables
+
+    public VisibilityHeartbeat( AWSParameters parameters ) {
+	this.parameters = parameters;
+	int timeout = parameters.getVisibilityTimeout();
+	tickMillis = 
+	    Math.max( 1, Math.min( MAX_TICK_SECONDS, timeout / 4 ) ) *
+	    (long)MILLISECONDS_IN_SECOND;
+	marginMillis =
+	    Math.min( MAX_MARGIN_SECONDS, timeout / 2 ) *
+	    (long)MILLISECONDS_IN_SECOND + tickMillis;
+	inFlight = new HashMap< String, Pair< Message, Long > >();
+	receivedAt = new HashMap< String, Long >();
+	maxHoldMillis = ( parameters.getMaxTaskRuntime() > 0 ) ?
+	    ( parameters.getMaxTaskRuntime() + (long)parameters.getTransferAllowance() ) *
+	    MILLISECONDS_IN_SECOND : 0;
+	scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+		public Thread newThread( Runnable runnable ) {
+		    Thread retval = new Thread( runnable );
+		    retval.setDaemon( true );
+		    return retval;
+		}
+	    } );
+	scheduler.scheduleWithFixedDelay( makeTick(),
+					  tickMillis,
+					  tickMillis,
+					  TimeUnit.MILLISECONDS );
+    }
+
+    protected Runnable makeTick() {
+	return new Runnable() {
+	    public void run() {
+		try {
+		    extendDue();
+		} catch ( Exception e ) {
+		    // an exception here would cancel all future ticks
+		    e.printStackTrace();
+		    System.err.println( e );
+		}
+	    }
+	};
+    }
+
+    /**
+     * Starts tracking the given message, which will become visible
+     * again at the given time (in milliseconds since the epoch) unless
+     * we extend it.
+     */
+    public void track( Message message, long visibleAt ) {
+	synchronized( inFlight ) {
+	    inFlight.put( message.getReceiptHandle(),
+			  new Pair< Message, Long >( message, Long.valueOf( visibleAt ) ) );
+	    receivedAt.put( message.getReceiptHandle(),
+			    Long.valueOf( visibleAt - 
+					  parameters.getVisibilityTimeout() * (long)MILLISECONDS_IN_SECOND ) );
+	}
+	if ( visibleAt - System.currentTimeMillis() <= marginMillis ) {
+	    // don't wait for the next tick
+	    scheduler.execute( makeTick() );
+	}
+    }
+
+    /**
+     * Starts tracking the given message, which was just received.
+     */
+    public void track( Message message ) {
+	track( message,
+	       System.currentTimeMillis() + 
+	       parameters.getVisibilityTimeout() * (long)MILLISECONDS_IN_SECOND );
+    }
+
+    /**
+     * Stops extending the given message.
+     */
+    public void untrack( Message message ) {
+	synchronized( inFlight ) {
+	    inFlight.remove( message.getReceiptHandle() );
+	    receivedAt.remove( message.getReceiptHandle() );
+	}
+    }
+
+    /**
+     * Gets all tracked messages that will become visible before the
+     * next tick has a chance to extend them.
+     * Messages that have been held for too long are no longer tracked,
+     * so that they go back on the queue.
+     */
+    protected List< Message > dueMessages() {
+	List< Message > retval = new ArrayList< Message >();
+	long now = System.currentTimeMillis();
+	long cutoff = now + marginMillis;
+	synchronized( inFlight ) {
+	    Iterator< Pair< Message, Long > > iterator = inFlight.values().iterator();
+	    while ( iterator.hasNext() ) {
+		Pair< Message, Long > entry = iterator.next();
+		if ( entry.second.longValue() <= cutoff ) {
+		    String handle = entry.first.getReceiptHandle();
+		    if ( maxHoldMillis > 0 &&
+			 now - receivedAt.get( handle ).longValue() > maxHoldMillis ) {
+			System.err.println( "Letting " + entry.first.getBody() +
+					    " go back on the queue after being held too long" );
+			iterator.remove();
+			receivedAt.remove( handle );
+		    } else {
+			retval.add( entry.first );
+		    }
+		}
+	    }
+	}
+	return retval;
+    }
+
+    /**
+     * Records that the given message was extended at the given time,
+     * unless it was untracked in the meantime.
+     */
+    protected void extended( Message message, long when ) {
+	long visibleAt = 
+	    when + parameters.getVisibilityTimeout() * (long)MILLISECONDS_IN_SECOND;
+	synchronized( inFlight ) {
+	    if ( inFlight.containsKey( message.getReceiptHandle() ) ) {
+		inFlight.put( message.getReceiptHandle(),
+			      new Pair< Message, Long >( message, Long.valueOf( visibleAt ) ) );
+	    }
+	}
+    }
+
+    /**
+     * Extends the given messages with a single request.
+     */
+    protected void extendBatch( List< Message > batch ) {
+	long now = System.currentTimeMillis();
+	Set< Message > failed = new HashSet< Message >();
+	try {
+	    ChangeMessageVisibilityBatchResult result =
+		parameters.changeMessageVisibility( batch,
+						    parameters.getVisibilityTimeout() );
+	    for( BatchResultErrorEntry error : result.getFailed() ) {
+		Message message = batch.get( Integer.parseInt( error.getId() ) );
+		failed.add( message );
+		// most likely the file finished or the message already
+		// went back on the queue; either way the next tick
+		// will try again if it's still tracked
+		System.err.println( "Failed to extend visibility of " +
+				    message.getBody() + ": " + 
+				    error.getMessage() );
+	    }
+	} catch ( AmazonClientException e ) {
+	    e.printStackTrace();
+	    System.err.println( e );
+	    return;
+	}
+
+	for( Message message : batch ) {
+	    if ( !failed.contains( message ) ) {
+		extended( message, now );
+	    }
+	}
+    }
+
+    /**
+     * Extends every message that is due, in batches.
+     */
+    protected void extendDue() {
+	List< Message > due = dueMessages();
+	for( int start = 0; start < due.size(); start += AWSParameters.MAX_NUMBER_MESSAGES ) {
+	    extendBatch( due.subList( start,
+				      Math.min( due.size(),
+						start + AWSParameters.MAX_NUMBER_MESSAGES ) ) );
+	}
+    }
+
+    public void shutdown() {
+	scheduler.shutdownNow();
+    }
+}
@@ -1,69 +1,30 @@
-import com.amazonaws.services.sqs.model.*;
-
-import java.io.IOException;
+import java.util.*;
 
+/**
+ * Processes the files of one or more messages, in batches if
+ * invocations are batched.
+ * The messages were handed to us already tracked by the worker's
+ * <code>VisibilityHeartbeat</code>, which keeps them invisible until
+ * we are done.
+ */
 public class VisibilityTimeoutRunnable {
-    // begin constants
-    public static final int MILLISECONDS_IN_MINUTE = 1000 * 60;
-    // end constants
-
     // begin instance variables
     private final Worker worker;
-    private final AWSParameters parameters;
-    private final Message message;
-    private final Thread timer;
-    private boolean done;
+    private final List< Task > tasks;
     // end instance variables
 
-    public VisibilityTimeoutRunnable( Worker worker, Message message ) {
+    public VisibilityTimeoutRunnable( Worker worker, List< Task > tasks ) {
 	this.worker = worker;
-	this.message = message;
-	parameters = worker.getParameters();
-	timer = 
-	    new Thread( new Runnable() {
-		    public void run() {
-			int baseTimeout = parameters.getVisibilityTimeout();
-			boolean shouldRun = true;
-			while( shouldRun && !Thread.currentThread().interrupted() ) {
-			    try {
-				Thread.sleep( baseTimeout * 1000 - MILLISECONDS_IN_MINUTE );
-				updateVisibilityTimeout();
-			    } catch ( InterruptedException e ) {
-				shouldRun = false;
-			    }
-			}
-		    }
-		} );
-    }
-
-    public void updateVisibilityTimeout() {
-	parameters.getSQS().changeMessageVisibility( 
-	  new ChangeMessageVisibilityRequest( parameters.param( AWSParameters.QUEUE_URL_ID ), 
-					      message.getReceiptHandle(),
-					      parameters.getVisibilityTimeout() ) );
+	this.tasks = tasks;
     }
 
     public void run() {
-	boolean errorOccurred = false;
-	timer.start();
-	try {
-	    worker.processFile( message.getBody() );
-	} catch ( IOException e ) {
-	    // try to go to the next one
-	    // don't mark as complete though; it could be a transient problem
-	    errorOccurred = true;
-	} finally {
-	    timer.interrupt();
-	}
-
-	try {
-	    timer.join();
-	    if ( !errorOccurred ) {
-		worker.doneWithFile( message );
-	    }
-	} catch ( InterruptedException e ) {
-	    // the timer didn't join in time
-	    // give up on it
+	List< Task > ready = worker.prepareTasks( tasks );
+	int batchSize = worker.getParameters().getBatchSize();
+	for( int start = 0; start < ready.size(); start += batchSize ) {
+	    worker.processBatch( ready.subList( start,
+						Math.min( start + batchSize,
+							  ready.size() ) ) );
 	}
     }
 }
@@ -1,62 +1,558 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
+import com.amazonaws.*;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.sqs.model.*;
 
 public abstract class Worker {
     // begin instance variables
     private final AWSParameters parameters;
+    private final VisibilityHeartbeat heartbeat;
+    private final MessageBuffer buffer;
+    private final MessageDeleter deleter;
+    private final AtomicLong numFilesDone;
     // end instance variables
 
     public Worker( AWSParameters parameters ) {
 	this.parameters = parameters;
+	heartbeat = new VisibilityHeartbeat( parameters );
+	buffer = new MessageBuffer( parameters, heartbeat );
+	deleter = new MessageDeleter( parameters );
+	numFilesDone = new AtomicLong( 0 );
     }
-    
+
+    /**
+     * Creates a worker that shares the parameters, the heartbeat, the
+     * message buffer, the message deleter, and the count of files done
+     * of the given worker.
+     */
+    protected Worker( Worker parent ) {
+	parameters = parent.getParameters();
+	heartbeat = parent.getHeartbeat();
+	buffer = parent.getMessageBuffer();
+	deleter = parent.getMessageDeleter();
+	numFilesDone = parent.numFilesDone;
+    }
+
     /**
-     * Gets the next file to process.
+     * Gets the message with the next file or files to process.
      * If there are none, this returns null.
+     * The message is kept invisible until either
+     * <code>doneWithFile</code> or <code>giveUpOnFile</code> is called
+     * for each of its files.
      */
     public Message nextFile() {
-	Message retval = null;
-	List< Message > messages = parameters.getMessages();
-	if ( messages.size() > 0 ) {
-	    retval = messages.get( 0 );
+	return buffer.nextMessage();
+    }
+
+    /**
+     * Gets the files to process for the given message: either the one
+     * file it names, or each file of a bundle.
+     * A bundle that can't be read has no files; it is dealt with by
+     * <code>badMessage</code>.
+     */
+    public List< Task > makeTasks( Message message ) {
+	if ( Bundle.isBundle( message ) ) {
+	    try {
+		return new Bundle( message ).getTasks();
+	    } catch ( IllegalArgumentException e ) {
+		badMessage( message, e );
+		return Collections.emptyList();
+	    }
 	}
+	return Collections.singletonList( new Task( message ) );
+    }
 
+    /**
+     * Gets rid of a message that can't be processed no matter how many
+     * times it is tried.  It is moved to the dead-letter queue if
+     * there is one, and otherwise its body is logged before it is
+     * deleted.
+     */
+    protected void badMessage( Message message, Exception e ) {
+	System.err.println( "Could not read message " + message.getMessageId() + 
+			    ": " + e );
+	heartbeat.untrack( message );
+	if ( parameters.hasDeadLetterQueue() ) {
+	    try {
+		parameters.sendToDeadLetterQueue( message.getBody(),
+						  String.valueOf( e ),
+						  null );
+		deleter.delete( message );
+	    } catch ( AmazonClientException e1 ) {
+		// it will come back, and we'll try again
+		e1.printStackTrace();
+		System.err.println( e1 );
+	    }
+	} else {
+	    System.err.println( "Deleting it; its body was:\n" + message.getBody() );
+	    deleter.delete( message );
+	}
+    }
+
+    /**
+     * Gets the files of the given message, along with the files of as
+     * many more messages as SQS has at hand, up to the batch size.
+     */
+    public List< Task > nextBatch( Message first ) {
+	List< Task > retval = new ArrayList< Task >( makeTasks( first ) );
+	Message message;
+	while ( retval.size() < parameters.getBatchSize() &&
+		( message = buffer.nextMessageNoWait() ) != null ) {
+	    retval.addAll( makeTasks( message ) );
+	}
 	return retval;
     }
 
     /**
-     * Deletes the message in the queue that we have a file.
+     * Notes that we are done with the given file.
+     * Its message is deleted in the background, once all of its files
+     * are done with.
+     */
+    public void doneWithFile( Task task ) {
+	numFilesDone.incrementAndGet();
+	finishedWith( task, true );
+    }
+
+    /**
+     * Notes that the given file couldn't be processed.  It will be
+     * processed again once the visibility timeout of its message runs
+     * out.
+     */
+    public void giveUpOnFile( Task task ) {
+	finishedWith( task, false );
+    }
+
+    protected void finishedWith( Task task,
+				 boolean succeeded ) {
+	Bundle bundle = task.getBundle();
+	if ( bundle == null ) {
+	    heartbeat.untrack( task.getMessage() );
+	    if ( succeeded ) {
+		deleter.delete( task.getMessage() );
+	    }
+	} else if ( bundle.finished( task, succeeded ) ) {
+	    finishBundle( bundle );
+	}
+    }
+
+    /**
+     * Sends each file of the given bundle that wasn't processed back to
+     * the bundle's shard of the queue on its own, along with the size
+     * and such from its line, and then deletes the bundle's message.
+     * If the files can't be sent, the whole bundle is left to come back
+     * instead.
      */
-    public void doneWithFile( Message message ) {
-	parameters.deleteMessage( message );
+    protected void finishBundle( Bundle bundle ) {
+	heartbeat.untrack( bundle.getMessage() );
+	try {
+	    for( S3ObjectSummary file : bundle.getFailedFiles() ) {
+		parameters.getSQS().sendMessage( Bundle.makeSendRequest( parameters.getQueueUrl( bundle.getMessage() ),
+									 Collections.singletonList( file ) ) );
+	    }
+	} catch ( AmazonClientException e ) {
+	    e.printStackTrace();
+	    System.err.println( e );
+	    return;
+	}
+	deleter.delete( bundle.getMessage() );
+    }
+
+    /**
+     * Abandons the given file, cleaning up whatever it left behind.
+     */
+    protected void failed( Task task, Throwable e ) {
+	e.printStackTrace();
+	System.err.println( e );
+	abandon( task, e );
+    }
+
+    /**
+     * Like <code>failed</code>, but doesn't report the problem.
+     * The file is moved to the dead-letter queue, if there is one, if
+     * it can't be processed or if this was its last try.  Otherwise it
+     * is given up on, to be tried again.
+     */
+    protected void abandon( Task task, Throwable e ) {
+	deleteInput( task );
+	ProcessResult result = null;
+	boolean poison = false;
+	if ( e instanceof AnalysisException ) {
+	    result = ( (AnalysisException)e ).getResult();
+	    poison = ( (AnalysisException)e ).isPoison();
+	}
+	if ( parameters.hasDeadLetterQueue() &&
+	     ( poison || isLastTry( task ) ) ) {
+	    deadLetter( task, e.getMessage(), result );
+	} else {
+	    giveUpOnFile( task );
+	}
+    }
+
+    /**
+     * Whether or not the given file has been received as many times as
+     * it is allowed to be.
+     */
+    protected boolean isLastTry( Task task ) {
+	int maxReceiveCount = parameters.getMaxReceiveCount();
+	return maxReceiveCount > 0 &&
+	    AWSParameters.receiveCount( task.getMessage() ) >= maxReceiveCount;
+    }
+
+    /**
+     * Moves the given file to the dead-letter queue, so that it isn't
+     * tried again.
+     */
+    protected void deadLetter( Task task,
+			       String reason,
+			       ProcessResult result ) {
+	try {
+	    parameters.sendToDeadLetterQueue( task.getFileName(),
+					      String.valueOf( reason ),
+					      result );
+	} catch ( AmazonClientException e ) {
+	    e.printStackTrace();
+	    System.err.println( e );
+	    giveUpOnFile( task );
+	    return;
+	}
+	System.err.println( "Moved " + task.getFileName() + 
+			    " to the dead-letter queue: " + reason );
+	finishedWith( task, true );
+    }
+
+    /**
+     * Reuses the output of an earlier run on the same input, if results
+     * are memoized and there was one.
+     * Returns true if the file needs no further processing.
+     */
+    public boolean reuseResult( Task task ) {
+	ResultMemo memo = parameters.getResultMemo();
+	if ( memo == null ) {
+	    return false;
+	}
+	task.setIndexKey( memo.indexKey( task ) );
+	return task.getIndexKey() != null &&
+	    memo.reuse( task.getIndexKey() );
+    }
+
+    /**
+     * Downloads the input file of the given task into the execution
+     * environment, unless inputs are streamed instead.
+     * Fails without downloading anything if the size of the file is
+     * known and there isn't room for it, so that another worker can
+     * have it.
+     */
+    public void downloadInput( Task task ) throws IOException {
+	if ( !parameters.isStdinInputMode() ) {
+	    File environment = new File( parameters.getEnvironmentPrefix() );
+	    if ( task.getSize() >= 0 &&
+		 environment.exists() &&
+		 environment.getUsableSpace() < task.getSize() ) {
+		throw new IOException( "Not enough disk space for " +
+				       task.getFileName() + " (" +
+				       task.getSize() + " bytes)" );
+	    }
+	    File inputFile = new File( environment,
+				       task.getFileName() );
+	    task.setInputFile( inputFile );
+	    String eTag = task.getETag();
+	    parameters.getObject( task, inputFile );
+	    if ( task.getIndexKey() != null &&
+		 !String.valueOf( eTag ).equals( task.getETag() ) ) {
+		// changed since it was looked up, so its result is
+		// recorded under the version that was analyzed
+		task.setIndexKey( parameters.getResultMemo().indexKey( task ) );
+	    }
+	}
+    }
+
+    /**
+     * Runs the analysis on the input file of the given task, which must
+     * have already been downloaded unless inputs are streamed.
+     * Records what the analysis program said its output file was.
+     * If the program's stdout is its output, this is uploaded as it
+     * runs, and there is no output file.
+     */
+    public void analyze( Task task ) throws IOException {
+	String fileName = task.getFileName();
+	if ( parameters.isStdoutObjectOutputMode() ) {
+	    if ( parameters.doAnalysisToObject( fileName ) ) {
+		task.setOutputKey( fileName );
+	    }
+	    task.setOutputFileName( "" );
+	} else if ( parameters.isStdinInputMode() ) {
+	    task.setOutputFileName( parameters.doAnalysisOnStream( fileName ) );
+	} else if ( parameters.isCoprocessInvocationMode() ) {
+	    task.setOutputFileName( parameters.doCoprocessAnalysis( fileName ) );
+	} else {
+	    task.setOutputFileName( parameters.doAnalysis( fileName ) );
+	}
     }
 
-    public void processFile( String fileName ) throws IOException {
-	File inputFile = new File( parameters.getEnvironmentPrefix(),
-				   fileName );
-	parameters.getObject( fileName, inputFile );
-	String outputFileName = parameters.doAnalysis( fileName );
+    /**
+     * Deletes the local copy of the input file of the given task, if
+     * there is one.
+     */
+    public void deleteInput( Task task ) {
+	if ( task.getInputFile() != null ) {
+	    task.getInputFile().delete();
+	}
+    }
+
+    /**
+     * Uploads the output file of the given task, if there is one.
+     */
+    public void uploadOutput( Task task ) throws IOException {
+	String outputFileName = task.getOutputFileName();
 	if ( !outputFileName.equals( "" ) ) {
 	    File outputFile = new File( parameters.getEnvironmentPrefix(),
 					outputFileName );
 	    if ( !outputFile.exists() ) {
 		outputFile = new File( outputFileName );
 	    }
-	    
+
 	    if ( outputFile.exists() ) {
 		parameters.putObject( outputFile.getName(),
 				      outputFile );
+		task.setOutputKey( outputFile.getName() );
 		outputFile.delete();
 	    }
 	}
-	inputFile.delete();
+    }
+
+    /**
+     * Records the output of the given task in the result index, if
+     * results are memoized.
+     */
+    public void recordResult( Task task ) {
+	if ( task.getIndexKey() != null ) {
+	    parameters.getResultMemo().record( task.getIndexKey(),
+					       task.getOutputKey() );
+	}
+    }
+
+    /**
+     * Gets the given file ready to analyze, either by reusing an
+     * earlier result or by downloading its input.
+     * Returns false if the earlier result was reused, in which case
+     * we are already done with the file.
+     */
+    protected boolean prepareTask( Task task ) throws IOException {
+	int maxReceiveCount = parameters.getMaxReceiveCount();
+	int receiveCount = AWSParameters.receiveCount( task.getMessage() );
+	if ( maxReceiveCount > 0 && receiveCount > maxReceiveCount ) {
+	    // most likely it took down whoever had it before
+	    deadLetter( task,
+			"Received " + receiveCount + " times without finishing",
+			null );
+	    return false;
+	}
+	if ( reuseResult( task ) ) {
+	    doneWithFile( task );
+	    return false;
+	}
+	downloadInput( task );
+	return true;
+    }
+
+    /**
+     * Whether or not the input of the given task can be downloaded on
+     * the transfer threads.  Inputs big enough to be downloaded as
+     * ranges use those threads themselves, so they can't.
+     */
+    protected boolean isSmallInput( Task task ) {
+	return task.getSize() >= 0 &&
+	    ( parameters.getRangedGetThreshold() == 0 ||
+	      task.getSize() < parameters.getRangedGetThreshold() );
+    }
+
+    /**
+     * Gets the given files ready to analyze.  The small inputs of a
+     * bundle are downloaded all at once.
+     * Returns the files that are ready.  We are already done with the
+     * rest, or have given up on them.
+     */
+    public List< Task > prepareTasks( List< Task > tasks ) {
+	List< Task > retval = new ArrayList< Task >();
+	List< Pair< Task, Future< Boolean > > > downloads =
+	    new ArrayList< Pair< Task, Future< Boolean > > >();
+	for( final Task task : tasks ) {
+	    if ( tasks.size() > 1 && isSmallInput( task ) ) {
+		downloads.add( new Pair< Task, Future< Boolean > >( 
+				 task,
+				 parameters.getTransferExecutor().submit( new Callable< Boolean >() {
+					 public Boolean call() throws IOException {
+					     return Boolean.valueOf( prepareTask( task ) );
+					 }
+				     } ) ) );
+	    } else {
+		try {
+		    if ( prepareTask( task ) ) {
+			retval.add( task );
+		    }
+		} catch ( IOException e ) {
+		    failed( task, e );
+		} catch ( RuntimeException e ) {
+		    failed( task, e );
+		}
+	    }
+	}
+	for( Pair< Task, Future< Boolean > > download : downloads ) {
+	    try {
+		if ( download.second.get().booleanValue() ) {
+		    retval.add( download.first );
+		}
+	    } catch ( ExecutionException e ) {
+		failed( download.first, e.getCause() );
+	    } catch ( InterruptedException e ) {
+		failed( download.first, e );
+	    }
+	}
+	return retval;
+    }
+
+    /**
+     * Analyzes the given files, which must already be prepared, and
+     * deletes their inputs.  If invocations are batched, they are all
+     * analyzed with a single run of the analysis program.
+     * Returns the files that were analyzed.  The rest have been given
+     * up on.
+     */
+    public List< Task > analyzeBatch( List< Task > tasks ) {
+	List< Task > retval = new ArrayList< Task >();
+	if ( !parameters.isBatchInvocationMode() ) {
+	    for( Task task : tasks ) {
+		try {
+		    analyze( task );
+		    retval.add( task );
+		} catch ( IOException e ) {
+		    failed( task, e );
+		} catch ( RuntimeException e ) {
+		    failed( task, e );
+		} finally {
+		    deleteInput( task );
+		}
+	    }
+	    return retval;
+	}
+
+	List< String > fileNames = new ArrayList< String >();
+	for( Task task : tasks ) {
+	    fileNames.add( task.getFileName() );
+	}
+	List< String > outputFileNames;
+	// why the program stopped, if it failed partway through
+	AnalysisException failure = null;
+	try {
+	    outputFileNames = parameters.doBatchAnalysis( fileNames );
+	} catch ( AnalysisException e ) {
+	    e.printStackTrace();
+	    System.err.println( e );
+	    // keep what it finished before failing
+	    outputFileNames = AWSParameters.reportedLines( e.getResult() );
+	    failure = e;
+	} catch ( IOException e ) {
+	    e.printStackTrace();
+	    System.err.println( e );
+	    for( Task task : tasks ) {
+		abandon( task, e );
+	    }
+	    return retval;
+	} catch ( RuntimeException e ) {
+	    e.printStackTrace();
+	    System.err.println( e );
+	    for( Task task : tasks ) {
+		abandon( task, e );
+	    }
+	    return retval;
+	} finally {
+	    for( Task task : tasks ) {
+		deleteInput( task );
+	    }
+	}
+
+	for( int x = 0; x < tasks.size(); x++ ) {
+	    Task task = tasks.get( x );
+	    if ( x < outputFileNames.size() ) {
+		task.setOutputFileName( outputFileNames.get( x ) );
+		retval.add( task );
+	    } else if ( failure != null && x == outputFileNames.size() ) {
+		// most likely the file it failed on
+		abandon( task, failure );
+	    } else {
+		// the program stopped before getting to it
+		System.err.println( "No output for " + task.getFileName() );
+		abandon( task,
+			 new IOException( "No output from a batch of " + tasks.size() ) );
+	    }
+	}
+	return retval;
+    }
+
+    /**
+     * Analyzes the given files, which must already be prepared, and
+     * uploads their outputs.  Each file is then either done with or
+     * given up on.
+     */
+    public void processBatch( List< Task > tasks ) {
+	for( Task task : analyzeBatch( tasks ) ) {
+	    try {
+		uploadOutput( task );
+		recordResult( task );
+		doneWithFile( task );
+	    } catch ( IOException e ) {
+		failed( task, e );
+	    } catch ( RuntimeException e ) {
+		failed( task, e );
+	    }
+	}
     }
 
     public AWSParameters getParameters() {
 	return parameters;
     }
 
+    public VisibilityHeartbeat getHeartbeat() {
+	return heartbeat;
+    }
+
+    public MessageBuffer getMessageBuffer() {
+	return buffer;
+    }
+
+    public MessageDeleter getMessageDeleter() {
+	return deleter;
+    }
+
+    /**
+     * Gets how many files have been completely processed so far.
+     */
+    public long getNumFilesDone() {
+	return numFilesDone.get();
+    }
+
+    /**
+     * Called once all files have been processed.
+     * Hands back any messages we received but never got to, and
+     * finishes deleting the messages of the files we did process.
+     * Also reports how well the input cache did, if there is one, and
+     * stops the analysis program if it is kept running.
+     */
+    public void shutdown() {
+	buffer.returnMessages();
+	heartbeat.shutdown();
+	deleter.shutdown();
+	if ( parameters.getCoprocessPool() != null ) {
+	    parameters.getCoprocessPool().shutdown();
+	}
+	if ( parameters.getInputCache() != null ) {
+	    System.out.println( parameters.getInputCache() );
+	}
+    }
+
     public abstract void processFiles();
 }